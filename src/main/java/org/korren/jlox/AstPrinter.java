@@ -35,6 +35,11 @@ class AstPrinter implements Expr.Visitor<String> {
         return parenthesize(".", expr.object, expr.name);
     }
 
+    @Override
+    public String visitInlineExpr(Expr.Inline expr) {
+        return parenthesize("inline", expr.call, expr.body);
+    }
+
     @Override
     public String visitGroupingExpr(Expr.Grouping expr) {
         return parenthesize("group", expr.expression);
@@ -0,0 +1,261 @@
+package org.korren.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base of the optimization passes. It rebuilds the tree bottom up, and keeps every node whose children did not
+// change, so passes only override the visits of the nodes they rewrite. A statement visit returns null to remove the
+// statement.
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    List<Stmt> run(List<Stmt> program) {
+        return rewrite(program);
+    }
+
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = rewrite(statement);
+            if (result != statement) changed = true;
+            if (result != null) rewritten.add(result);
+        }
+        return changed ? rewritten : statements;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    Expr rewrite(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // For the statements a parent cannot do without, like the body of a loop
+    private Stmt rewriteRequired(Stmt stmt) {
+        Stmt result = rewrite(stmt);
+        if (result == null) return new Stmt.Block(new ArrayList<>());
+        return result;
+    }
+
+    private List<Expr> rewriteAll(List<Expr> expressions) {
+        List<Expr> rewritten = new ArrayList<>(expressions.size());
+        boolean changed = false;
+        for (Expr expression : expressions) {
+            Expr result = rewrite(expression);
+            if (result != expression) changed = true;
+            rewritten.add(result);
+        }
+        return changed ? rewritten : expressions;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value) return expr;
+        return new Expr.Assign(expr.name, value);
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = rewrite(expr.callee);
+        List<Expr> arguments = rewriteAll(expr.arguments);
+        if (callee == expr.callee && arguments == expr.arguments) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = rewrite(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitInlineExpr(Expr.Inline expr) {
+        Expr.Call call = (Expr.Call)rewrite(expr.call);
+        Expr body = rewrite(expr.body);
+        if (call == expr.call && body == expr.body) return expr;
+        return new Expr.Inline(call, expr.params, body);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        List<Stmt> body = rewrite(expr.body);
+        if (body == expr.body) return expr;
+        return new Expr.Lambda(expr.params, body);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = rewrite(expr.object);
+        Expr value = rewrite(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr condition = rewrite(expr.condition);
+        Expr trueBranch = rewrite(expr.trueBranch);
+        Expr falseBranch = rewrite(expr.falseBranch);
+        if (condition == expr.condition && trueBranch == expr.trueBranch && falseBranch == expr.falseBranch) {
+            return expr;
+        }
+        return new Expr.Ternary(condition, trueBranch, falseBranch);
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        return new Stmt.Block(statements);
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        // The superclass has to stay a variable
+        Expr.Variable superclass = stmt.superclass;
+        if (superclass != null) {
+            Expr rewritten = rewrite(superclass);
+            if (rewritten instanceof Expr.Variable) superclass = (Expr.Variable)rewritten;
+        }
+        List<Stmt.Function> methods = rewriteFunctions(stmt.methods);
+        List<Stmt.Function> classMethods = rewriteFunctions(stmt.classMethods);
+        if (superclass == stmt.superclass && methods == stmt.methods && classMethods == stmt.classMethods) {
+            return stmt;
+        }
+        return new Stmt.Class(stmt.name, superclass, methods, classMethods);
+    }
+
+    private List<Stmt.Function> rewriteFunctions(List<Stmt.Function> functions) {
+        List<Stmt.Function> rewritten = new ArrayList<>(functions.size());
+        boolean changed = false;
+        for (Stmt.Function function : functions) {
+            Stmt.Function result = rewriteFunction(function);
+            if (result != function) changed = true;
+            rewritten.add(result);
+        }
+        return changed ? rewritten : functions;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        return rewriteFunction(stmt);
+    }
+
+    // Shared by function declarations and methods, which do not declare a variable
+    Stmt.Function rewriteFunction(Stmt.Function function) {
+        List<Stmt> body = rewrite(function.body);
+        if (body == function.body) return function;
+        return new Stmt.Function(function.name, function.params, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewriteRequired(stmt.thenBranch);
+        Stmt elseBranch = stmt.elseBranch == null ? null : rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) return stmt;
+        Expr value = rewrite(stmt.value);
+        if (value == stmt.value) return stmt;
+        return new Stmt.Return(stmt.keyword, value);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        return new Stmt.Var(stmt.name, initializer);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewriteRequired(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
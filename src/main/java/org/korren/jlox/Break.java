@@ -1,7 +0,0 @@
-package org.korren.jlox;
-
-public class Break extends RuntimeException {
-    Break() {
-        super(null, null, false, false);
-    }
-}
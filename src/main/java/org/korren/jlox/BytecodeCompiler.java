@@ -0,0 +1,637 @@
+package org.korren.jlox;
+
+import org.korren.jlox.vm.Chunk;
+import org.korren.jlox.vm.FunctionProto;
+import org.korren.jlox.vm.OpCode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles resolved statements into bytecode for the VM. The Resolver already reported all the static errors, so
+// the compiler only needs to do its own (clox style) bookkeeping of where each variable lives at runtime.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_UPVALUES = 256;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT
+    }
+
+    private static class Local {
+        final String name;
+        // -1 while the variable's initializer is being compiled
+        int depth;
+        boolean isCaptured = false;
+        // Declared without an initializer, so its reads check it was assigned since
+        boolean isUnassigned = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // Compilation state of the function currently being compiled
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final FunctionProto function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, FunctionProto function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot 0 holds the callee, or the receiver for methods
+            boolean hasReceiver = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+            locals.add(new Local(hasReceiver ? "this" : "", 0));
+        }
+    }
+
+    private FunctionState current = null;
+    // Source line attributed to the code being emitted
+    private int line = 0;
+
+    FunctionProto compile(List<Stmt> statements) {
+        current = new FunctionState(null, new FunctionProto("script", 0), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.COMMA) {
+            // The comma operator evaluates both operands and yields nil, like the tree-walking interpreter
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            emitByte(OpCode.POP);
+            emitByte(OpCode.NIL);
+            return null;
+        }
+        compile(expr.right);
+
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case GREATER -> emitByte(OpCode.GREATER);
+            case GREATER_EQUAL -> emitByte(OpCode.GREATER_EQUAL);
+            case LESS -> emitByte(OpCode.LESS);
+            case LESS_EQUAL -> emitByte(OpCode.LESS_EQUAL);
+            case MINUS -> emitByte(OpCode.SUBTRACT);
+            case PLUS -> emitByte(OpCode.ADD);
+            case SLASH -> emitByte(OpCode.DIVIDE);
+            case STAR -> emitByte(OpCode.MULTIPLY);
+            case BANG_EQUAL -> {
+                emitByte(OpCode.EQUAL);
+                emitByte(OpCode.NOT);
+            }
+            case EQUAL_EQUAL -> emitByte(OpCode.EQUAL);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        compileCall(expr, OpCode.CALL);
+        return null;
+    }
+
+    private void compileCall(Expr.Call expr, byte opCode) {
+        compile(expr.callee);
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+        line = expr.paren.line;
+        emitBytes(opCode, expr.arguments.size());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitWithShort(OpCode.GET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    // Compiled as the plain call, only the tree-walking tiers check the guard of an inlined call
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        FunctionProto function = function("lambda", expr.params, expr.body, FunctionType.FUNCTION);
+        // As in the other backends, a lambda using no variable from around it is created once
+        if (!expr.captures) function.hoist();
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitByte(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emitByte(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emitByte(OpCode.FALSE);
+        } else {
+            emitWithShort(OpCode.CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitByte(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitWithShort(OpCode.SET_PROPERTY, makeConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        getVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+        getVariable(expr.keyword);
+        line = expr.method.line;
+        emitWithShort(OpCode.GET_SUPER, makeConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.condition);
+        int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(expr.trueBranch);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        emitByte(OpCode.POP);
+        compile(expr.falseBranch);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        getVariable(expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG -> emitByte(OpCode.NOT);
+            case MINUS -> emitByte(OpCode.NEGATE);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.keyword.line;
+        Loop loop = current.loop;
+        discardLocals(loop.scopeDepth);
+        loop.breakJumps.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        emitWithShort(OpCode.CLASS, nameConstant);
+        defineVariable(stmt.name, nameConstant);
+
+        if (stmt.superclass != null) {
+            beginScope();
+            addLocal(new Token(TokenType.SUPER, "super", null, stmt.name.line));
+            markInitialized();
+
+            compile(stmt.superclass);
+            getVariable(stmt.name);
+            line = stmt.superclass.name.line;
+            emitByte(OpCode.INHERIT);
+        }
+
+        line = stmt.name.line;
+        getVariable(stmt.name);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method.name.lexeme, method.params, method.body, type);
+            emitWithShort(OpCode.METHOD, makeConstant(method.name.lexeme));
+        }
+        for (Stmt.Function method : stmt.classMethods) {
+            function(method.name.lexeme, method.params, method.body, FunctionType.METHOD);
+            emitWithShort(OpCode.CLASS_METHOD, makeConstant(method.name.lexeme));
+        }
+        emitByte(OpCode.POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        line = stmt.keyword.line;
+        Loop loop = current.loop;
+        discardLocals(loop.scopeDepth);
+        emitLoop(loop.start);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitByte(OpCode.POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        // A function may refer to itself, so it is usable before its body is compiled
+        if (current.scopeDepth > 0) markInitialized();
+        function(stmt.name.lexeme, stmt.params, stmt.body, FunctionType.FUNCTION);
+        defineVariable(stmt.name, nameConstant);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+        compile(stmt.thenBranch);
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        emitByte(OpCode.POP);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitByte(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else if (stmt.value instanceof Expr.Call) {
+            // The VM reuses the frame of the function for the call when it can, so the RETURN is only reached when
+            // the callee is not a Lox function
+            compileCall((Expr.Call)stmt.value, OpCode.TAIL_CALL);
+            emitByte(OpCode.RETURN);
+        } else {
+            compile(stmt.value);
+            emitByte(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        int nameConstant = makeConstant(stmt.name.lexeme);
+        declareVariable(stmt.name);
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitByte(OpCode.UNASSIGNED);
+            if (current.scopeDepth > 0) current.locals.get(current.locals.size() - 1).isUnassigned = true;
+        }
+        defineVariable(stmt.name, nameConstant);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = currentChunk().count();
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+        emitByte(OpCode.POP);
+
+        current.loop = new Loop(current.loop, loopStart, current.scopeDepth);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        emitByte(OpCode.POP);
+        for (int jump : current.loop.breakJumps) {
+            patchJump(jump);
+        }
+        current.loop = current.loop.enclosing;
+        return null;
+    }
+
+    private FunctionProto function(String name, List<Token> params, List<Stmt> body, FunctionType type) {
+        FunctionState state = new FunctionState(current, new FunctionProto(name, params.size()), type);
+        current = state;
+        beginScope();
+        for (Token param : params) {
+            declareVariable(param);
+            markInitialized();
+        }
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        emitReturn();
+        current = state.enclosing;
+
+        FunctionProto function = state.function;
+        function.setUpvalueCount(state.upvalues.size());
+        emitWithShort(OpCode.CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal() ? 1 : 0);
+            emitByte(upvalue.index());
+        }
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            emitByte(locals.get(locals.size() - 1).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Pop the locals deeper than the given scope without forgetting them, for jumps out of a loop body
+    private void discardLocals(int depth) {
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > depth; i--) {
+            emitByte(locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private void declareVariable(Token name) {
+        if (current.scopeDepth == 0) return;
+        addLocal(name);
+    }
+
+    private void addLocal(Token name) {
+        if (current.locals.size() == MAX_LOCALS) {
+            Lox.error(name, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(new Local(name.lexeme, -1));
+    }
+
+    private void markInitialized() {
+        if (current.scopeDepth == 0) return;
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(Token name, int nameConstant) {
+        if (current.scopeDepth > 0) {
+            markInitialized();
+            return;
+        }
+        line = name.line;
+        emitWithShort(OpCode.DEFINE_GLOBAL, nameConstant);
+    }
+
+    private void getVariable(Token name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitBytes(OpCode.GET_LOCAL, slot);
+            if (current.locals.get(slot).isUnassigned) emitCheckAssigned(name);
+        } else if ((slot = resolveUpvalue(current, name)) != -1) {
+            emitBytes(OpCode.GET_UPVALUE, slot);
+            if (capturesUnassigned(current, name)) emitCheckAssigned(name);
+        } else {
+            emitWithShort(OpCode.GET_GLOBAL, makeConstant(name.lexeme));
+        }
+    }
+
+    private void setVariable(Token name) {
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitBytes(OpCode.SET_LOCAL, slot);
+        } else if ((slot = resolveUpvalue(current, name)) != -1) {
+            emitBytes(OpCode.SET_UPVALUE, slot);
+        } else {
+            emitWithShort(OpCode.SET_GLOBAL, makeConstant(name.lexeme));
+        }
+    }
+
+    private void emitCheckAssigned(Token name) {
+        emitWithShort(OpCode.CHECK_ASSIGNED, makeConstant(name.lexeme));
+    }
+
+    // Whether the variable a function captures was declared without an initializer
+    private boolean capturesUnassigned(FunctionState state, Token name) {
+        for (FunctionState enclosing = state.enclosing; enclosing != null; enclosing = enclosing.enclosing) {
+            int local = resolveLocal(enclosing, name);
+            if (local != -1) return enclosing.locals.get(local).isUnassigned;
+        }
+        return false;
+    }
+
+    private int resolveLocal(FunctionState state, Token name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            if (local.depth != -1 && local.name.equals(name.lexeme)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, name);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, name);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token name) {
+        Upvalue upvalue = new Upvalue(index, isLocal);
+        int existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            Lox.error(name, "Too many closure variables in function.");
+            return 0;
+        }
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    private Chunk currentChunk() {
+        return current.function.chunk();
+    }
+
+    private void emitByte(int b) {
+        currentChunk().write(b, line);
+    }
+
+    private void emitBytes(int b1, int b2) {
+        emitByte(b1);
+        emitByte(b2);
+    }
+
+    private void emitWithShort(int op, int operand) {
+        emitByte(op);
+        emitByte((operand >> 8) & 0xff);
+        emitByte(operand & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitBytes(OpCode.GET_LOCAL, 0);
+        } else {
+            emitByte(OpCode.NIL);
+        }
+        emitByte(OpCode.RETURN);
+    }
+
+    private int emitJump(int op) {
+        emitByte(op);
+        emitByte(0xff);
+        emitByte(0xff);
+        return currentChunk().count() - 2;
+    }
+
+    private void patchJump(int offset) {
+        int jump = currentChunk().count() - offset - 2;
+        if (jump > 0xffff) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        currentChunk().patch(offset, (jump >> 8) & 0xff);
+        currentChunk().patch(offset + 1, jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OpCode.LOOP);
+        int offset = currentChunk().count() - loopStart + 2;
+        if (offset > 0xffff) {
+            Lox.error(line, "Loop body too large.");
+        }
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+
+    private int makeConstant(Object value) {
+        int constant = currentChunk().addConstant(value);
+        if (constant > 0xffff) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+}
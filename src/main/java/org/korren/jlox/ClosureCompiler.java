@@ -0,0 +1,1200 @@
+package org.korren.jlox;
+
+import org.korren.jlox.ValueStack.Cell;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Converts a resolved program into a tree of Java lambdas. Everything the Interpreter looks up while walking the
+// AST (the operator of an expression, where a variable lives, the value of a literal) is looked up once here, so
+// every lambda only does the work of its own node, and the JVM sees a separate call site for each of them. The code
+// keeps its locals on a ValueStack instead of in Environments. As the BytecodeCompiler, the compiler does its own
+// bookkeeping of where each local lives, and only boxes in a Cell the locals the Resolver marked as captured.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprCode>, Stmt.Visitor<ClosureCompiler.StmtCode> {
+    interface ExprCode {
+        Object evaluate(ValueStack stack);
+
+        // Numbers can flow between nodes without being boxed through this channel. Nodes computing numbers produce
+        // the double directly, for the others the value is unboxed here. Throws NotANumber with the value if it is
+        // not a number; nodes handle the NotANumber of their operands, so it is always about the node's own value.
+        default double evaluateNumber(ValueStack stack) {
+            Object value = evaluate(stack);
+            if (value instanceof Double) return (double)value;
+            throw new NotANumber(value);
+        }
+
+        // Whether evaluateNumber is expected to succeed, and is cheaper than evaluate
+        default boolean producesNumbers() {
+            return false;
+        }
+
+        // For expressions whose value is discarded
+        default void evaluateForEffect(ValueStack stack) {
+            evaluate(stack);
+        }
+    }
+
+    // A node that always produces a number, so its value can stay unboxed
+    private abstract static class NumberNode implements ExprCode {
+        @Override
+        public Object evaluate(ValueStack stack) {
+            return evaluateNumber(stack);
+        }
+
+        @Override
+        public abstract double evaluateNumber(ValueStack stack);
+
+        @Override
+        public boolean producesNumbers() {
+            return true;
+        }
+    }
+
+    // Statements return how they completed, as in the Interpreter
+    interface StmtCode {
+        Completion execute(ValueStack stack);
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        // The local holds a Cell, as a nested function reads or assigns it
+        final boolean isCaptured;
+        // Declared without an initializer, so its reads check it was assigned since
+        boolean isUnassigned = false;
+
+        Local(String name, int depth, boolean isCaptured) {
+            this.name = name;
+            this.depth = depth;
+            this.isCaptured = isCaptured;
+        }
+    }
+
+    private record Upvalue(int index, boolean isLocal) {}
+
+    // Compilation state of the function being compiled. Its locals are in the order of their slots, the parameters
+    // first, and a slot is reused once the scope of its local ends.
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth;
+        // The most locals in scope at once
+        int frameSize = 0;
+
+        FunctionState(FunctionState enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    // What the functions created from a declaration share
+    private static final class FunctionCode {
+        final String name;
+        final List<Token> params;
+        final boolean isInitializer;
+        StmtCode[] body;
+        int frameSize;
+        // The parameters that go into a Cell before the body runs
+        int[] capturedParams;
+        Upvalue[] upvalues;
+
+        FunctionCode(String name, List<Token> params, boolean isInitializer) {
+            this.name = name;
+            this.params = params;
+            this.isInitializer = isInitializer;
+        }
+
+        // Functions declared in a function or a method get the this and the superclass of the code creating them
+        StackFunction create(ValueStack stack) {
+            StackFunction function = stack.function;
+            return create(stack, stack.receiver, function == null ? null : function.superclass);
+        }
+
+        StackFunction create(ValueStack stack, Object receiver, LoxClass superclass) {
+            Cell[] cells = new Cell[upvalues.length];
+            for (int i = 0; i < cells.length; i++) {
+                Upvalue upvalue = upvalues[i];
+                cells[i] = upvalue.isLocal ? stack.cell(upvalue.index) : stack.function.upvalues[upvalue.index];
+            }
+            return new StackFunction(this, cells, receiver, superclass);
+        }
+    }
+
+    // A function built by the compiler. It runs on the ValueStack with the cells it captured, and the this and the
+    // superclass it was created with. Methods get their this from the call, unless they are bound.
+    static final class StackFunction extends LoxFunction {
+        private final FunctionCode code;
+        final Cell[] upvalues;
+        private final Object receiver;
+        final LoxClass superclass;
+
+        private StackFunction(FunctionCode code, Cell[] upvalues, Object receiver, LoxClass superclass) {
+            super(code.name, code.params, code.isInitializer);
+            this.code = code;
+            this.upvalues = upvalues;
+            this.receiver = receiver;
+            this.superclass = superclass;
+        }
+
+        // Runs the function on the arguments pushed from base, and pops them
+        Object invoke(ValueStack stack, int base, Object receiver) {
+            int callerBase = stack.base;
+            StackFunction caller = stack.function;
+            Object callerReceiver = stack.receiver;
+            stack.base = base;
+            stack.reserve(code.frameSize);
+            stack.function = this;
+            stack.receiver = receiver;
+            try {
+                for (int param : code.capturedParams) {
+                    stack.set(param, new Cell(stack.get(param)));
+                }
+                Completion completion = executeAll(code.body, stack);
+                if (code.isInitializer) return receiver;
+                if (completion != null) return completion.value;
+                return null;
+            } finally {
+                stack.base = callerBase;
+                stack.top = base;
+                stack.function = caller;
+                stack.receiver = callerReceiver;
+            }
+        }
+
+        @Override
+        public Object call(Interpreter interpreter, List<Object> arguments) {
+            return invoke(interpreter.stack, pushAll(arguments, interpreter.stack), receiver);
+        }
+
+        @Override
+        Object callMethod(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+            return invoke(interpreter.stack, pushAll(arguments, interpreter.stack), instance);
+        }
+
+        private static int pushAll(List<Object> arguments, ValueStack stack) {
+            int base = stack.top;
+            for (Object argument : arguments) {
+                stack.push(argument);
+            }
+            return base;
+        }
+
+        @Override
+        LoxFunction bind(LoxInstance instance) {
+            return new StackFunction(code, upvalues, instance, superclass);
+        }
+
+        // The functions of this compiler have no body for the Interpreter and no closure Environment, so the frame
+        // protocol of the Interpreter does not apply to them. The callers check for StackFunction first.
+        @Override
+        Environment frame() {
+            throw notInFrames();
+        }
+
+        @Override
+        Environment frame(LoxInstance instance) {
+            throw notInFrames();
+        }
+
+        @Override
+        Object run(Interpreter interpreter, Environment frame) {
+            throw notInFrames();
+        }
+
+        private IllegalStateException notInFrames() {
+            return new IllegalStateException("Function '" + code.name + "' runs on the value stack, not in a frame");
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final Environment globals;
+    private FunctionState current = new FunctionState(null, 0);
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+        this.globals = interpreter.globals;
+    }
+
+    Runnable compile(List<Stmt> statements) {
+        FunctionState script = current;
+        StmtCode[] program = compileAll(statements);
+        ValueStack stack = interpreter.stack;
+        return () -> {
+            // A runtime error leaves the stack as it was where it happened
+            stack.base = 0;
+            stack.function = null;
+            stack.receiver = null;
+            stack.reserve(script.frameSize);
+            for (StmtCode statement : program) {
+                statement.execute(stack);
+            }
+        };
+    }
+
+    private StmtCode[] compileAll(List<Stmt> statements) {
+        StmtCode[] code = new StmtCode[statements.size()];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = compile(statements.get(i));
+        }
+        return code;
+    }
+
+    private StmtCode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    @Override
+    public StmtCode visitExpressionStmt(Stmt.Expression stmt) {
+        ExprCode expression = compile(stmt.expression);
+        return (stack) -> {
+            expression.evaluateForEffect(stack);
+            return null;
+        };
+    }
+
+    @Override
+    public StmtCode visitPrintStmt(Stmt.Print stmt) {
+        ExprCode expression = compile(stmt.expression);
+        return (stack) -> {
+            interpreter.print(expression.evaluate(stack));
+            return null;
+        };
+    }
+
+    // Blocks only exist at compile time, their locals are slots of the function's frame
+    @Override
+    public StmtCode visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        StmtCode[] statements = compileAll(stmt.statements);
+        endScope();
+        return (stack) -> executeAll(statements, stack);
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    // Returns the slot of the new local
+    private int addLocal(Token name, boolean isCaptured) {
+        current.locals.add(new Local(name.lexeme, current.scopeDepth, isCaptured));
+        current.frameSize = Math.max(current.frameSize, current.locals.size());
+        return current.locals.size() - 1;
+    }
+
+    private boolean isCaptured(int slot) {
+        return current.locals.get(slot).isCaptured;
+    }
+
+    private static int resolveLocal(FunctionState state, Token name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name.lexeme)) return i;
+        }
+        return -1;
+    }
+
+    private static int resolveUpvalue(FunctionState state, Token name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) return addUpvalue(state, new Upvalue(local, true));
+
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) return addUpvalue(state, new Upvalue(upvalue, false));
+
+        return -1;
+    }
+
+    private static int addUpvalue(FunctionState state, Upvalue upvalue) {
+        int existing = state.upvalues.indexOf(upvalue);
+        if (existing != -1) return existing;
+
+        state.upvalues.add(upvalue);
+        return state.upvalues.size() - 1;
+    }
+
+    @Override
+    public StmtCode visitBreakStmt(Stmt.Break stmt) {
+        return (stack) -> Completion.BREAK;
+    }
+
+    @Override
+    public StmtCode visitContinueStmt(Stmt.Continue stmt) {
+        return (stack) -> Completion.CONTINUE;
+    }
+
+    @Override
+    public StmtCode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return (stack) -> Completion.RETURN_NIL;
+        }
+
+        ExprCode value = compile(stmt.value);
+        return (stack) -> Completion.returning(value.evaluate(stack));
+    }
+
+    @Override
+    public StmtCode visitFunctionStmt(Stmt.Function stmt) {
+        String name = stmt.name.lexeme;
+        if (current.scopeDepth == 0) {
+            FunctionCode code = compileFunction(name, stmt.params, stmt.capturedParams, stmt.body, false);
+            return (stack) -> {
+                globals.define(name, code.create(stack));
+                return null;
+            };
+        }
+
+        // The local is in scope in the body, so that the function can call itself
+        int slot = addLocal(stmt.name, stmt.captured);
+        FunctionCode code = compileFunction(name, stmt.params, stmt.capturedParams, stmt.body, false);
+        if (isCaptured(slot)) {
+            return (stack) -> {
+                Cell cell = new Cell(null);
+                stack.set(slot, cell);
+                cell.value = code.create(stack);
+                return null;
+            };
+        }
+        return (stack) -> {
+            stack.set(slot, code.create(stack));
+            return null;
+        };
+    }
+
+    private static Completion executeAll(StmtCode[] statements, ValueStack stack) {
+        for (StmtCode statement : statements) {
+            Completion completion = statement.execute(stack);
+            if (completion != null) return completion;
+        }
+        return null;
+    }
+
+    @Override
+    public StmtCode visitVarStmt(Stmt.Var stmt) {
+        ExprCode initializer = stmt.initializer == null ? null : compile(stmt.initializer);
+        if (current.scopeDepth == 0) {
+            String name = stmt.name.lexeme;
+            if (initializer == null) {
+                return (stack) -> {
+                    globals.defineUnassigned(name);
+                    return null;
+                };
+            }
+            return (stack) -> {
+                globals.define(name, initializer.evaluate(stack));
+                return null;
+            };
+        }
+
+        // Declared after its initializer, which cannot read it
+        int slot = addLocal(stmt.name, stmt.captured);
+        if (initializer == null) current.locals.get(slot).isUnassigned = true;
+        if (isCaptured(slot)) {
+            return (stack) -> {
+                stack.set(slot, new Cell(initializer == null ? Environment.UNASSIGNED : initializer.evaluate(stack)));
+                return null;
+            };
+        }
+        if (initializer == null) {
+            return (stack) -> {
+                stack.set(slot, Environment.UNASSIGNED);
+                return null;
+            };
+        }
+        return (stack) -> {
+            if (initializer.producesNumbers()) {
+                try {
+                    stack.setNumber(slot, initializer.evaluateNumber(stack));
+                } catch (NotANumber notANumber) {
+                    stack.set(slot, notANumber.value);
+                }
+            } else {
+                stack.set(slot, initializer.evaluate(stack));
+            }
+            return null;
+        };
+    }
+
+    @Override
+    public StmtCode visitIfStmt(Stmt.If stmt) {
+        ExprCode condition = compile(stmt.condition);
+        StmtCode thenBranch = compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            return (stack) -> {
+                if (Interpreter.isTruthy(condition.evaluate(stack))) {
+                    return thenBranch.execute(stack);
+                }
+                return null;
+            };
+        }
+
+        StmtCode elseBranch = compile(stmt.elseBranch);
+        return (stack) -> {
+            if (Interpreter.isTruthy(condition.evaluate(stack))) {
+                return thenBranch.execute(stack);
+            } else {
+                return elseBranch.execute(stack);
+            }
+        };
+    }
+
+    @Override
+    public StmtCode visitWhileStmt(Stmt.While stmt) {
+        if (stmt.counted != null) {
+            // A captured counter lives in a Cell, which the counted loop does not update
+            int slot = resolveLocal(current, stmt.counted.counter.name);
+            if (slot != -1 && !isCaptured(slot)) return compileCountedLoop(stmt.counted, slot);
+        }
+
+        ExprCode condition = compile(stmt.condition);
+        StmtCode body = compile(stmt.body);
+        return (stack) -> {
+            while (Interpreter.isTruthy(condition.evaluate(stack))) {
+                Completion completion = body.execute(stack);
+                if (completion == Completion.BREAK) break;
+                if (completion != null && completion != Completion.CONTINUE) return completion;
+            }
+            return null;
+        };
+    }
+
+    // The counter is kept in a double, and stored in place in its slot for the body
+    private StmtCode compileCountedLoop(CountedLoop loop, int slot) {
+        ExprCode limit = compile(loop.limit);
+        beginScope();
+        StmtCode[] body = compileAll(loop.body);
+        endScope();
+        double step = loop.step;
+
+        return (stack) -> {
+            Object start = stack.get(slot);
+            double bound = evaluateLimit(loop, limit, stack);
+            double value = loop.number(start);
+            while (loop.test(value, bound)) {
+                Completion completion = executeAll(body, stack);
+                if (completion == Completion.BREAK) break;
+                if (completion != null) return completion;
+
+                value += step;
+                stack.setNumber(slot, value);
+                bound = evaluateLimit(loop, limit, stack);
+            }
+            return null;
+        };
+    }
+
+    private static double evaluateLimit(CountedLoop loop, ExprCode limit, ValueStack stack) {
+        try {
+            return limit.evaluateNumber(stack);
+        } catch (NotANumber notANumber) {
+            return loop.number(notANumber.value);
+        }
+    }
+
+    private FunctionCode compileFunction(
+            String name, List<Token> params, boolean[] capturedParams, List<Stmt> body, boolean isInitializer
+    ) {
+        FunctionCode code = new FunctionCode(name, params, isInitializer);
+        current = new FunctionState(current, 1);
+        List<Integer> captured = new ArrayList<>();
+        for (int i = 0; i < params.size(); i++) {
+            addLocal(params.get(i), capturedParams[i]);
+            if (capturedParams[i]) captured.add(i);
+        }
+        code.body = compileAll(body);
+
+        code.frameSize = current.frameSize;
+        code.capturedParams = captured.stream().mapToInt(Integer::intValue).toArray();
+        code.upvalues = current.upvalues.toArray(new Upvalue[0]);
+        current = current.enclosing;
+        return code;
+    }
+
+    @Override
+    public StmtCode visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme;
+        int slot = current.scopeDepth == 0 ? -1 : addLocal(stmt.name, stmt.captured);
+        boolean captured = slot != -1 && isCaptured(slot);
+        ExprCode superclassCode = stmt.superclass == null ? null : compile(stmt.superclass);
+        Token superclassName = stmt.superclass == null ? null : stmt.superclass.name;
+
+        List<Stmt.Function> methods = stmt.methods;
+        List<FunctionCode> methodCode = new ArrayList<>();
+        for (Stmt.Function method : methods) {
+            String methodName = method.name.lexeme;
+            methodCode.add(compileFunction(
+                    methodName, method.params, method.capturedParams, method.body, methodName.equals("init")
+            ));
+        }
+        List<Stmt.Function> classMethods = stmt.classMethods;
+        List<FunctionCode> classMethodCode = new ArrayList<>();
+        for (Stmt.Function method : classMethods) {
+            classMethodCode.add(compileFunction(
+                    method.name.lexeme, method.params, method.capturedParams, method.body, false
+            ));
+        }
+
+        return (stack) -> {
+            // The methods may capture the class
+            Cell cell = null;
+            if (captured) {
+                cell = new Cell(null);
+                stack.set(slot, cell);
+            }
+
+            LoxClass superclass = null;
+            if (superclassCode != null) {
+                Object value = superclassCode.evaluate(stack);
+                if (!(value instanceof LoxClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class.");
+                }
+                superclass = (LoxClass)value;
+            }
+
+            Map<String, LoxFunction> methodMap = new HashMap<>();
+            for (int i = 0; i < methods.size(); i++) {
+                methodMap.put(methods.get(i).name.lexeme, methodCode.get(i).create(stack, null, superclass));
+            }
+            Map<String, LoxFunction> classMethodMap = new HashMap<>();
+            for (int i = 0; i < classMethods.size(); i++) {
+                classMethodMap.put(
+                        classMethods.get(i).name.lexeme, classMethodCode.get(i).create(stack, null, superclass)
+                );
+            }
+
+            LoxClass klass = new LoxClass(name, superclass, methodMap, classMethodMap);
+            if (slot == -1) {
+                globals.define(name, klass);
+            } else if (captured) {
+                cell.value = klass;
+            } else {
+                stack.set(slot, klass);
+            }
+            return null;
+        };
+    }
+
+    private ExprCode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    @Override
+    public ExprCode visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double) {
+            double number = (double)value;
+            return new NumberNode() {
+                @Override
+                public Object evaluate(ValueStack stack) {
+                    return value;
+                }
+
+                @Override
+                public double evaluateNumber(ValueStack stack) {
+                    return number;
+                }
+            };
+        }
+        return (stack) -> value;
+    }
+
+    @Override
+    public ExprCode visitGroupingExpr(Expr.Grouping expr) {
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprCode visitVariableExpr(Expr.Variable expr) {
+        Token name = expr.name;
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            boolean unassigned = current.locals.get(slot).isUnassigned;
+            if (isCaptured(slot)) {
+                if (unassigned) return (stack) -> Environment.checkAssigned(name, stack.cell(slot).value);
+                return (stack) -> stack.cell(slot).value;
+            }
+            if (unassigned) return (stack) -> Environment.checkAssigned(name, stack.get(slot));
+            return new ExprCode() {
+                @Override
+                public Object evaluate(ValueStack stack) {
+                    return stack.get(slot);
+                }
+
+                @Override
+                public double evaluateNumber(ValueStack stack) {
+                    return stack.getNumber(slot);
+                }
+            };
+        }
+
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            return (stack) -> Environment.checkAssigned(name, stack.function.upvalues[upvalue].value);
+        }
+        Environment.Global global = globals.global(name.lexeme);
+        return (stack) -> global.get(name);
+    }
+
+    @Override
+    public ExprCode visitThisExpr(Expr.This expr) {
+        return (stack) -> stack.receiver;
+    }
+
+    @Override
+    public ExprCode visitTernaryExpr(Expr.Ternary expr) {
+        ExprCode condition = compile(expr.condition);
+        ExprCode trueBranch = compile(expr.trueBranch);
+        ExprCode falseBranch = compile(expr.falseBranch);
+        return (stack) -> Interpreter.isTruthy(condition.evaluate(stack))
+                ? trueBranch.evaluate(stack)
+                : falseBranch.evaluate(stack);
+    }
+
+    @Override
+    public ExprCode visitLambdaExpr(Expr.Lambda expr) {
+        FunctionCode code = compileFunction("lambda", expr.params, expr.capturedParams, expr.body, false);
+        if (!expr.captures) {
+            // It has no upvalues and does not use this or super, so it is created once
+            StackFunction function = code.create(null, null, null);
+            return (stack) -> function;
+        }
+        return code::create;
+    }
+
+    @Override
+    public ExprCode visitAssignExpr(Expr.Assign expr) {
+        ExprCode value = compile(expr.value);
+        Token name = expr.name;
+        int slot = resolveLocal(current, name);
+        if (slot != -1 && !isCaptured(slot)) {
+            return new ExprCode() {
+                @Override
+                public Object evaluate(ValueStack stack) {
+                    Object result = value.evaluate(stack);
+                    stack.set(slot, result);
+                    return result;
+                }
+
+                // Numbers assigned as statements never get boxed, they are stored unboxed in the variable
+                @Override
+                public void evaluateForEffect(ValueStack stack) {
+                    if (!value.producesNumbers()) {
+                        stack.set(slot, value.evaluate(stack));
+                        return;
+                    }
+
+                    try {
+                        stack.setNumber(slot, value.evaluateNumber(stack));
+                    } catch (NotANumber notANumber) {
+                        stack.set(slot, notANumber.value);
+                    }
+                }
+            };
+        }
+
+        if (slot != -1) {
+            return (stack) -> {
+                Object result = value.evaluate(stack);
+                stack.cell(slot).value = result;
+                return result;
+            };
+        }
+        int upvalue = resolveUpvalue(current, name);
+        if (upvalue != -1) {
+            return (stack) -> {
+                Object result = value.evaluate(stack);
+                stack.function.upvalues[upvalue].value = result;
+                return result;
+            };
+        }
+        Environment.Global global = globals.global(name.lexeme);
+        return (stack) -> {
+            Object result = value.evaluate(stack);
+            global.assign(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprCode visitBinaryExpr(Expr.Binary expr) {
+        ExprCode left = compile(expr.left);
+        ExprCode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        switch (operator.type) {
+            case GREATER:
+                return new ComparisonNode(left, right, operator) {
+                    @Override
+                    boolean compare(double a, double b) { return a > b; }
+                };
+            case GREATER_EQUAL:
+                return new ComparisonNode(left, right, operator) {
+                    @Override
+                    boolean compare(double a, double b) { return a >= b; }
+                };
+            case LESS:
+                return new ComparisonNode(left, right, operator) {
+                    @Override
+                    boolean compare(double a, double b) { return a < b; }
+                };
+            case LESS_EQUAL:
+                return new ComparisonNode(left, right, operator) {
+                    @Override
+                    boolean compare(double a, double b) { return a <= b; }
+                };
+
+            case MINUS:
+                return new ArithmeticNode(left, right, operator) {
+                    @Override
+                    double apply(double a, double b) { return a - b; }
+                };
+            case PLUS:
+                return new AddNode(left, right, operator);
+            case SLASH:
+                return new ArithmeticNode(left, right, operator) {
+                    @Override
+                    double apply(double a, double b) {
+                        if (b == 0) {
+                            throw new RuntimeError(operator, "Division by zero");
+                        }
+                        return a / b;
+                    }
+                };
+            case STAR:
+                return new ArithmeticNode(left, right, operator) {
+                    @Override
+                    double apply(double a, double b) { return a * b; }
+                };
+
+            case BANG_EQUAL:
+                return (stack) -> !Interpreter.isEqual(left.evaluate(stack), right.evaluate(stack));
+            case EQUAL_EQUAL:
+                return (stack) -> Interpreter.isEqual(left.evaluate(stack), right.evaluate(stack));
+        }
+
+        // The comma operator evaluates both operands and produces nil
+        return (stack) -> {
+            left.evaluate(stack);
+            right.evaluate(stack);
+            return null;
+        };
+    }
+
+    // An operator on two numbers, which evaluates its operands through the numeric channel
+    private abstract static class ArithmeticNode extends NumberNode {
+        private final ExprCode left;
+        private final ExprCode right;
+        final Token operator;
+
+        ArithmeticNode(ExprCode left, ExprCode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        abstract double apply(double a, double b);
+
+        @Override
+        public double evaluateNumber(ValueStack stack) {
+            double a;
+            try {
+                a = left.evaluateNumber(stack);
+            } catch (NotANumber notANumber) {
+                // The right operand is still evaluated before the error, as in the interpreter
+                right.evaluate(stack);
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+
+            try {
+                return apply(a, right.evaluateNumber(stack));
+            } catch (NotANumber notANumber) {
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+        }
+    }
+
+    private abstract static class ComparisonNode implements ExprCode {
+        private final ExprCode left;
+        private final ExprCode right;
+        private final Token operator;
+
+        ComparisonNode(ExprCode left, ExprCode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        abstract boolean compare(double a, double b);
+
+        @Override
+        public Object evaluate(ValueStack stack) {
+            double a;
+            try {
+                a = left.evaluateNumber(stack);
+            } catch (NotANumber notANumber) {
+                right.evaluate(stack);
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+
+            try {
+                return compare(a, right.evaluateNumber(stack));
+            } catch (NotANumber notANumber) {
+                throw new RuntimeError(operator, "Operands must be numbers.");
+            }
+        }
+    }
+
+    // A "+" that specializes itself on the operand types it sees first. While the operands keep their types, only
+    // the guard for them is checked. The first time a guard fails the node falls back to the generic addition for
+    // good, so polymorphic code does not keep switching between specializations.
+    private static final class AddNode implements ExprCode {
+        private static final int UNINITIALIZED = 0;
+        private static final int NUMBERS = 1;
+        private static final int STRINGS = 2;
+        private static final int GENERIC = 3;
+
+        private final ExprCode left;
+        private final ExprCode right;
+        private final Token operator;
+        private int state = UNINITIALIZED;
+
+        AddNode(ExprCode left, ExprCode right, Token operator) {
+            this.left = left;
+            this.right = right;
+            this.operator = operator;
+        }
+
+        @Override
+        public Object evaluate(ValueStack stack) {
+            Object a = left.evaluate(stack);
+            Object b = right.evaluate(stack);
+
+            switch (state) {
+                case NUMBERS:
+                    if (a instanceof Double && b instanceof Double) return (double)a + (double)b;
+                    break;
+                case STRINGS:
+                    if (a instanceof CharSequence && b instanceof CharSequence) {
+                        return Rope.concat((CharSequence)a, (CharSequence)b);
+                    }
+                    break;
+                case GENERIC:
+                    return Interpreter.add(operator, a, b);
+            }
+
+            return specialize(a, b);
+        }
+
+        @Override
+        public double evaluateNumber(ValueStack stack) {
+            if (state != NUMBERS) {
+                return unbox(evaluate(stack));
+            }
+
+            double a;
+            try {
+                a = left.evaluateNumber(stack);
+            } catch (NotANumber notANumber) {
+                return unbox(specialize(notANumber.value, right.evaluate(stack)));
+            }
+
+            try {
+                return a + right.evaluateNumber(stack);
+            } catch (NotANumber notANumber) {
+                return unbox(specialize(a, notANumber.value));
+            }
+        }
+
+        @Override
+        public boolean producesNumbers() {
+            return state == UNINITIALIZED || state == NUMBERS;
+        }
+
+        private static double unbox(Object value) {
+            if (value instanceof Double) return (double)value;
+            throw new NotANumber(value);
+        }
+
+        private Object specialize(Object a, Object b) {
+            if (state == UNINITIALIZED && a instanceof Double && b instanceof Double) {
+                state = NUMBERS;
+            } else if (state == UNINITIALIZED && a instanceof CharSequence && b instanceof CharSequence) {
+                state = STRINGS;
+            } else {
+                state = GENERIC;
+            }
+            return Interpreter.add(operator, a, b);
+        }
+    }
+
+    @Override
+    public ExprCode visitUnaryExpr(Expr.Unary expr) {
+        ExprCode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        if (operator.type == TokenType.BANG) {
+            return (stack) -> !Interpreter.isTruthy(right.evaluate(stack));
+        }
+        return new NumberNode() {
+            @Override
+            public double evaluateNumber(ValueStack stack) {
+                try {
+                    return -right.evaluateNumber(stack);
+                } catch (NotANumber notANumber) {
+                    throw new RuntimeError(operator, "Operand must be a number.");
+                }
+            }
+        };
+    }
+
+    @Override
+    public ExprCode visitLogicalExpr(Expr.Logical expr) {
+        ExprCode left = compile(expr.left);
+        ExprCode right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return (stack) -> {
+                Object value = left.evaluate(stack);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(stack);
+            };
+        }
+        return (stack) -> {
+            Object value = left.evaluate(stack);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(stack);
+        };
+    }
+
+    @Override
+    public ExprCode visitCallExpr(Expr.Call expr) {
+        ExprCode[] arguments = new ExprCode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (expr.callee instanceof Expr.Get) {
+            // Calling a method directly does not need the bound method, it is only made for methods used as values
+            Expr.Get get = (Expr.Get)expr.callee;
+            ExprCode object = compile(get.object);
+            Token name = get.name;
+            PropertyCache cache = get.cache;
+
+            return (stack) -> {
+                LoxInstance instance = Interpreter.instance(object.evaluate(stack), name);
+                LoxFunction method = instance.getMethod(name, cache);
+                if (method != null) {
+                    int base = pushAll(arguments, stack);
+                    Interpreter.checkArity(method, stack.top - base, paren);
+                    return ((StackFunction)method).invoke(stack, base, instance);
+                }
+                Object function = instance.get(name, cache);
+                return call(stack, function, pushAll(arguments, stack), paren);
+            };
+        }
+
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).constant) {
+            Token name = ((Expr.Variable)expr.callee).name;
+            return new LinkedCall(globals.global(name.lexeme), name, arguments, paren);
+        }
+
+        if (expr.callee instanceof Expr.Super) {
+            // Calling a method of the superclass does not need the bound method either, it runs with the current this
+            Token name = ((Expr.Super)expr.callee).method;
+            SuperCache cache = ((Expr.Super)expr.callee).cache;
+
+            return (stack) -> {
+                LoxFunction method = cache.lookup(stack.function.superclass, name);
+                Object receiver = stack.receiver;
+                int base = pushAll(arguments, stack);
+                Interpreter.checkArity(method, stack.top - base, paren);
+                return ((StackFunction)method).invoke(stack, base, receiver);
+            };
+        }
+
+        ExprCode callee = compile(expr.callee);
+        return new ExprCode() {
+            @Override
+            public Object evaluate(ValueStack stack) {
+                Object function = callee.evaluate(stack);
+                return call(stack, function, pushAll(arguments, stack), paren);
+            }
+
+            // Natives computing numbers, like clock, are called without boxing the result
+            @Override
+            public double evaluateNumber(ValueStack stack) {
+                Object function = callee.evaluate(stack);
+                if (function instanceof NumberNative && arguments.length == 0) {
+                    return ((NumberNative)function).callNumber();
+                }
+
+                Object value = call(stack, function, pushAll(arguments, stack), paren);
+                if (value instanceof Double) return (double)value;
+                throw new NotANumber(value);
+            }
+        };
+    }
+
+    // A call of a function or class bound once at the top level. It links to it the first time, and then only checks
+    // that the global still holds it before running it.
+    private final class LinkedCall implements ExprCode {
+        private final Environment.Global global;
+        private final Token name;
+        private final ExprCode[] arguments;
+        private final Token paren;
+        private StackFunction target = null;
+        private LoxClass klass = null;
+
+        LinkedCall(Environment.Global global, Token name, ExprCode[] arguments, Token paren) {
+            this.global = global;
+            this.name = name;
+            this.arguments = arguments;
+            this.paren = paren;
+        }
+
+        @Override
+        public Object evaluate(ValueStack stack) {
+            StackFunction function = target;
+            if (function != null && global.holds(function)) {
+                return function.invoke(stack, pushAll(arguments, stack), function.receiver);
+            }
+            LoxClass klass = this.klass;
+            if (klass != null && global.holds(klass)) return construct(stack, klass, pushAll(arguments, stack));
+            return link(stack);
+        }
+
+        private Object link(ValueStack stack) {
+            Object callee = global.get(name);
+            target = null;
+            klass = null;
+            if (callee instanceof StackFunction && ((StackFunction)callee).arity() == arguments.length) {
+                target = (StackFunction)callee;
+            } else if (callee instanceof LoxClass && ((LoxClass)callee).arity() == arguments.length) {
+                klass = (LoxClass)callee;
+            }
+            return call(stack, callee, pushAll(arguments, stack), paren);
+        }
+    }
+
+    // Evaluates the arguments of a call onto the stack, and returns where they start
+    private static int pushAll(ExprCode[] arguments, ValueStack stack) {
+        int base = stack.top;
+        for (ExprCode argument : arguments) {
+            stack.push(argument.evaluate(stack));
+        }
+        return base;
+    }
+
+    // Calls with the arguments pushed from base, and pops them. The functions and the initializers of this compiler
+    // run on the stack, the other callables get the arguments in a frame, as in the Interpreter.
+    private Object call(ValueStack stack, Object callee, int base, Token paren) {
+        if (callee instanceof StackFunction) {
+            StackFunction function = (StackFunction)callee;
+            Interpreter.checkArity(function, stack.top - base, paren);
+            return function.invoke(stack, base, function.receiver);
+        }
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass)callee;
+            Interpreter.checkArity(klass, stack.top - base, paren);
+            return construct(stack, klass, base);
+        }
+
+        Environment frame = Interpreter.frame(callee, stack.top - base);
+        for (int i = base; i < stack.top; i++) {
+            frame.define(null, stack.values[i]);
+        }
+        stack.top = base;
+        return interpreter.call(callee, frame, paren);
+    }
+
+    // Runs the initializer on a new instance of the class, with the arguments pushed from base, and pops them
+    private static Object construct(ValueStack stack, LoxClass klass, int base) {
+        LoxInstance instance = new LoxInstance(klass);
+        if (klass.initializer == null) {
+            stack.top = base;
+            return instance;
+        }
+        return ((StackFunction)klass.initializer).invoke(stack, base, instance);
+    }
+
+    // The inlined body only runs when the call goes to the function it was copied from
+    @Override
+    public ExprCode visitInlineExpr(Expr.Inline expr) {
+        ExprCode call = compile(expr.call);
+        ExprCode body = compile(expr.body);
+        List<Token> params = expr.params;
+
+        if (expr.call.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.call.callee;
+            ExprCode object = compile(get.object);
+            Token name = get.name;
+            PropertyCache cache = get.cache;
+
+            return (stack) -> {
+                LoxInstance instance = Interpreter.instance(object.evaluate(stack), name);
+                LoxFunction method = instance.getMethod(name, cache);
+                if (method != null && method.isDeclaredWith(params)) return body.evaluate(stack);
+                return call.evaluate(stack);
+            };
+        }
+
+        ExprCode callee = compile(expr.call.callee);
+        return (stack) -> {
+            Object function = callee.evaluate(stack);
+            if (function instanceof LoxFunction && ((LoxFunction)function).isDeclaredWith(params)) {
+                return body.evaluate(stack);
+            }
+            return call.evaluate(stack);
+        };
+    }
+
+    @Override
+    public ExprCode visitGetExpr(Expr.Get expr) {
+        ExprCode object = compile(expr.object);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+
+        return (stack) -> Interpreter.instance(object.evaluate(stack), name).get(name, cache);
+    }
+
+    @Override
+    public ExprCode visitSetExpr(Expr.Set expr) {
+        ExprCode object = compile(expr.object);
+        ExprCode value = compile(expr.value);
+        Token name = expr.name;
+
+        return (stack) -> {
+            Object instance = object.evaluate(stack);
+            if (!(instance instanceof LoxInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(stack);
+            ((LoxInstance)instance).set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprCode visitSuperExpr(Expr.Super expr) {
+        Token method = expr.method;
+        SuperCache cache = expr.cache;
+
+        return (stack) -> {
+            LoxFunction function = cache.lookup(stack.function.superclass, method);
+            return function.bind((LoxInstance)stack.receiver);
+        };
+    }
+}
@@ -0,0 +1,7 @@
+package org.korren.jlox;
+
+// A function body compiled to JVM bytecode by the JitCompiler. It runs in the frame of the call, which holds the
+// arguments and encloses the function's closure.
+interface CompiledFunction {
+    Object call(Interpreter interpreter, Environment frame);
+}
@@ -0,0 +1,23 @@
+package org.korren.jlox;
+
+// How a statement finished when execution does not simply go on with the next statement: a break, a continue, or a
+// return with its value. Statements return null normally, or a Completion that the enclosing statements pass up
+// until the loop or function it belongs to handles it. Unlike exceptions this keeps loops and calls on the normal
+// return path, where the JVM can inline them.
+final class Completion {
+    static final Completion BREAK = new Completion(null);
+    static final Completion CONTINUE = new Completion(null);
+    static final Completion RETURN_NIL = new Completion(null);
+
+    // The returned value
+    final Object value;
+
+    private Completion(Object value) {
+        this.value = value;
+    }
+
+    static Completion returning(Object value) {
+        if (value == null) return RETURN_NIL;
+        return new Completion(value);
+    }
+}
@@ -0,0 +1,51 @@
+package org.korren.jlox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Finds the functions and classes declared once at the top level and never assigned, so that the global holds the
+// same function or class from its declaration on, and marks the reads of those globals as constant. Calls through a
+// constant read get linked to their target. The REPL runs the pass on each input on its own, and a later input may
+// still assign the global, so the links check that it holds their target.
+class ConstantBindings extends AstRewriter {
+    private final Set<String> assigned = new HashSet<>();
+    private final List<Expr.Variable> reads = new ArrayList<>();
+
+    @Override
+    List<Stmt> run(List<Stmt> program) {
+        // A var statement, or a second declaration, assigns the global too
+        Set<String> constants = new HashSet<>();
+        for (Stmt stmt : program) {
+            Token name = null;
+            if (stmt instanceof Stmt.Function) {
+                name = ((Stmt.Function)stmt).name;
+            } else if (stmt instanceof Stmt.Class) {
+                name = ((Stmt.Class)stmt).name;
+            } else if (stmt instanceof Stmt.Var) {
+                assigned.add(((Stmt.Var)stmt).name.lexeme);
+            }
+            if (name != null && !constants.add(name.lexeme)) assigned.add(name.lexeme);
+        }
+
+        rewrite(program);
+        constants.removeAll(assigned);
+        for (Expr.Variable read : reads) {
+            read.constant = constants.contains(read.name.lexeme);
+        }
+        return program;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        if (expr.local == null) assigned.add(expr.name.lexeme);
+        return super.visitAssignExpr(expr);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        if (expr.local == null) reads.add(expr);
+        return expr;
+    }
+}
@@ -0,0 +1,61 @@
+package org.korren.jlox;
+
+// Replaces the operators whose operands are literals, like 60 * 60 * 24, by their value. The interpreter computes the
+// values, so the folded result is exactly what the program would have produced, and an operation that fails, like a
+// division by zero, is left for the program to report at run time.
+class ConstantFolding extends AstRewriter {
+    private final Interpreter interpreter;
+
+    ConstantFolding(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr rewritten = super.visitBinaryExpr(expr);
+        Expr.Binary binary = (Expr.Binary)rewritten;
+        if (binary.left instanceof Expr.Literal && binary.right instanceof Expr.Literal) {
+            return fold(binary);
+        }
+        return binary;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression instanceof Expr.Literal) return expression;
+        if (expression == expr.expression) return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr.Unary unary = (Expr.Unary)super.visitUnaryExpr(expr);
+        if (unary.right instanceof Expr.Literal) return fold(unary);
+        return unary;
+    }
+
+    private Expr fold(Expr expr) {
+        try {
+            Object value = expr.accept(interpreter);
+            // Literals hold flat strings, the backends compile them as constants
+            if (value instanceof Rope) value = value.toString();
+            return new Expr.Literal(value);
+        } catch (RuntimeError error) {
+            return expr;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.korren.jlox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces the reads of local variables that are initialized with a literal and never assigned by the literal, and
+// removes their declarations. Globals are left alone, any code, even code that comes later, may assign them.
+class ConstantPropagation extends AstRewriter {
+    // The declaration each local variable read refers to
+    private final Map<Expr.Variable, Stmt.Var> declarations = new IdentityHashMap<>();
+    private final Set<Stmt.Var> locals = new HashSet<>();
+    private final Set<Stmt.Var> assigned = new HashSet<>();
+
+    @Override
+    List<Stmt> run(List<Stmt> program) {
+        // The whole program is analyzed before anything is replaced
+        new Analysis().rewrite(program);
+        return rewrite(program);
+    }
+
+    private boolean isConstant(Stmt.Var declaration) {
+        return locals.contains(declaration) && declaration.initializer instanceof Expr.Literal
+                && !assigned.contains(declaration);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        Stmt.Var declaration = declarations.get(expr);
+        if (declaration != null && isConstant(declaration)) {
+            return new Expr.Literal(((Expr.Literal)declaration.initializer).value);
+        }
+        return expr;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        if (isConstant(stmt)) return null;
+        return super.visitVarStmt(stmt);
+    }
+
+    // Links the variable reads to their declarations, following the scopes of the resolver. Names declared by
+    // anything but a var statement are in the scopes too, with no declaration, so that they shadow the outer ones.
+    private class Analysis extends AstRewriter {
+        private final Deque<Map<String, Stmt.Var>> scopes = new ArrayDeque<>();
+
+        private void declare(Token name, Stmt.Var declaration) {
+            if (scopes.isEmpty()) return;
+            scopes.peek().put(name.lexeme, declaration);
+            if (declaration != null) locals.add(declaration);
+        }
+
+        private Stmt.Var lookup(Token name) {
+            for (Map<String, Stmt.Var> scope : scopes) {
+                if (scope.containsKey(name.lexeme)) return scope.get(name.lexeme);
+            }
+            return null;
+        }
+
+        private void function(List<Token> params, List<Stmt> body) {
+            scopes.push(new HashMap<>());
+            for (Token param : params) declare(param, null);
+            rewrite(body);
+            scopes.pop();
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            super.visitAssignExpr(expr);
+            Stmt.Var declaration = lookup(expr.name);
+            if (declaration != null) assigned.add(declaration);
+            return expr;
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Expr.Lambda expr) {
+            function(expr.params, expr.body);
+            return expr;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            Stmt.Var declaration = lookup(expr.name);
+            if (declaration != null) declarations.put(expr, declaration);
+            return expr;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            scopes.push(new HashMap<>());
+            rewrite(stmt.statements);
+            scopes.pop();
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            declare(stmt.name, null);
+            if (stmt.superclass != null) {
+                // The superclass has to stay a variable read
+                Stmt.Var declaration = lookup(stmt.superclass.name);
+                if (declaration != null) assigned.add(declaration);
+            }
+            for (Stmt.Function method : stmt.methods) function(method.params, method.body);
+            for (Stmt.Function method : stmt.classMethods) function(method.params, method.body);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            declare(stmt.name, null);
+            function(stmt.params, stmt.body);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            super.visitVarStmt(stmt);
+            declare(stmt.name, stmt);
+            return stmt;
+        }
+    }
+}
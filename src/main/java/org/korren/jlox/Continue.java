@@ -1,7 +0,0 @@
-package org.korren.jlox;
-
-public class Continue extends RuntimeException {
-    Continue() {
-        super(null, null, false, false);
-    }
-}
@@ -0,0 +1,42 @@
+package org.korren.jlox;
+
+import java.util.List;
+
+// A for loop of the form for (var i = a; i < b; i = i + c), with any comparison and a literal step, whose body neither
+// assigns the counter nor continues. The CountedLoops pass attaches it to the while statement of the loop, and the
+// backends that know it keep the counter in a double instead of evaluating the condition and the increment. The
+// while statement stays as it was for the others.
+class CountedLoop {
+    final Expr.Variable counter;
+    final Token operator;
+    final Expr limit;
+    final double step;
+    // The body without the increment. It still runs in a scope of its own, as the Resolver saw it.
+    final List<Stmt> body;
+
+    CountedLoop(Expr.Variable counter, Token operator, Expr limit, double step, List<Stmt> body) {
+        this.counter = counter;
+        this.operator = operator;
+        this.limit = limit;
+        this.step = step;
+        this.body = body;
+    }
+
+    // The counter or the limit, checked as the comparison checks its operands
+    double number(Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    boolean test(double value, double limit) {
+        switch (operator.type) {
+            case LESS: return value < limit;
+            case LESS_EQUAL: return value <= limit;
+            case GREATER: return value > limit;
+            case GREATER_EQUAL: return value >= limit;
+        }
+
+        // Unreachable
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+package org.korren.jlox;
+
+import java.util.List;
+
+// Finds the for loops that count a variable by a literal step, in the block the Parser desugars them to, and attaches
+// a CountedLoop to their while statement. The tree itself does not change.
+class CountedLoops extends AstRewriter {
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt result = super.visitBlockStmt(stmt);
+        if (result instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)result).statements;
+            // Without an initializer the condition reports the unassigned counter
+            if (statements.size() == 2 && statements.get(0) instanceof Stmt.Var
+                    && ((Stmt.Var)statements.get(0)).initializer != null && statements.get(1) instanceof Stmt.While) {
+                Stmt.While loop = (Stmt.While)statements.get(1);
+                loop.counted = countedLoop(((Stmt.Var)statements.get(0)).name.lexeme, loop);
+            }
+        }
+        return result;
+    }
+
+    private static CountedLoop countedLoop(String counter, Stmt.While loop) {
+        if (!(loop.condition instanceof Expr.Binary) || !(loop.body instanceof Stmt.Block)) return null;
+
+        Expr.Binary condition = (Expr.Binary)loop.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!isVariable(condition.left, counter)) return null;
+
+        // The increment is the last statement of the body
+        List<Stmt> statements = ((Stmt.Block)loop.body).statements;
+        if (statements.size() != 2 || !(statements.get(1) instanceof Stmt.Expression)) return null;
+        Expr increment = ((Stmt.Expression)statements.get(1)).expression;
+        if (!(increment instanceof Expr.Assign) || !((Expr.Assign)increment).name.lexeme.equals(counter)) return null;
+        Expr value = ((Expr.Assign)increment).value;
+        if (!(value instanceof Expr.Binary)) return null;
+
+        Expr.Binary sum = (Expr.Binary)value;
+        if (!isVariable(sum.left, counter) || !(sum.right instanceof Expr.Literal)) return null;
+        Object step = ((Expr.Literal)sum.right).value;
+        if (!(step instanceof Double)) return null;
+        switch (sum.operator.type) {
+            case PLUS: break;
+            case MINUS: step = -(double)step; break;
+            default: return null;
+        }
+
+        // A continue skips the increment, which the counted loop does not do
+        CounterUses uses = new CounterUses(counter);
+        uses.rewrite(condition.right);
+        uses.rewrite(statements.get(0));
+        if (uses.assigned || uses.continued) return null;
+
+        return new CountedLoop(
+                (Expr.Variable)condition.left, condition.operator, condition.right, (double)step, statements.subList(0, 1)
+        );
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable)expr).name.lexeme.equals(name);
+    }
+
+    // Looks for assignments to the counter, or to any variable of the same name, and for continue statements of the
+    // loop itself, without changing the tree
+    private static class CounterUses extends AstRewriter {
+        private final String counter;
+        private int loops = 0;
+        boolean assigned = false;
+        boolean continued = false;
+
+        CounterUses(String counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            if (expr.name.lexeme.equals(counter)) assigned = true;
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Stmt visitContinueStmt(Stmt.Continue stmt) {
+            if (loops == 0) continued = true;
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            loops++;
+            try {
+                return super.visitWhileStmt(stmt);
+            } finally {
+                loops--;
+            }
+        }
+    }
+}
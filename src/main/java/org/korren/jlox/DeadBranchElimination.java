@@ -0,0 +1,30 @@
+package org.korren.jlox;
+
+// Removes the branches a literal condition never takes: the other arm of an if or of a ternary, and loops whose
+// condition is falsey from the start.
+class DeadBranchElimination extends AstRewriter {
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        if (!(stmt.condition instanceof Expr.Literal)) return super.visitIfStmt(stmt);
+
+        if (Interpreter.isTruthy(((Expr.Literal)stmt.condition).value)) return rewrite(stmt.thenBranch);
+        if (stmt.elseBranch == null) return null;
+        return rewrite(stmt.elseBranch);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        if (!(expr.condition instanceof Expr.Literal)) return super.visitTernaryExpr(expr);
+
+        if (Interpreter.isTruthy(((Expr.Literal)expr.condition).value)) return rewrite(expr.trueBranch);
+        return rewrite(expr.falseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        if (stmt.condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal)stmt.condition).value)) {
+            return null;
+        }
+        return super.visitWhileStmt(stmt);
+    }
+}
@@ -1,60 +1,118 @@
 package org.korren.jlox;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Environment {
+    // The value of a variable declared without an initializer, until it is assigned
+    static final Object UNASSIGNED = new Object();
+    private static final Object UNDEFINED = new Object();
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-    private final Object UNASSIGNED = new Object();
+    // Only the global environment is looked up by name, local environments store their values in the slots that
+    // the Resolver assigned to them, in declaration order.
+    private final Map<String, Global> values;
+    private Object[] slots;
+    private int count = 0;
+
+    // The cell of a global variable. It stays the same for as long as the global environment, so the nodes and the
+    // compiled code that read or assign a global keep it once they looked it up. A name read before its definition
+    // gets a cell too, which is undefined until then.
+    static final class Global {
+        private Object value = UNDEFINED;
+
+        Object get(Token name) {
+            Object value = this.value;
+            if (value == UNDEFINED) {
+                throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+            }
+            return checkAssigned(name, value);
+        }
+
+        // For the calls linked to a function, which check it is still the global's value
+        boolean holds(Object value) {
+            return this.value == value;
+        }
+
+        void assign(Token name, Object value) {
+            if (this.value == UNDEFINED) {
+                throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+            }
+            this.value = value;
+        }
+    }
+
+    // For the reads of variables, on every backend
+    static Object checkAssigned(Token name, Object value) {
+        if (value == UNASSIGNED) {
+            throw new RuntimeError(name, "Cannot read unassigned variable '" + name.lexeme + "'.");
+        }
+        return value;
+    }
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
     }
     Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+        this(enclosing, 4);
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    // For the frames of calls, which the arguments are written to before the callee runs in them
+    Environment(Environment enclosing, int capacity) {
+        this.enclosing = enclosing;
+        values = null;
+        slots = new Object[Math.max(capacity, 4)];
     }
 
-    void defineUnassigned(String name) { values.put(name, UNASSIGNED); }
+    void define(String name, Object value) {
+        if (values != null) {
+            global(name).value = value;
+            return;
+        }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            Object value =  values.get(name.lexeme);
-            if (value == UNASSIGNED) {
-                throw new RuntimeError(name, "Cannot read unassigned variable '" + name.lexeme + "'.");
-            }
-            return value;
+        if (count == slots.length) {
+            slots = Arrays.copyOf(slots, count * 2);
         }
+        slots[count++] = value;
+    }
 
-        if (enclosing != null) return enclosing.get(name);
+    void defineUnassigned(String name) { define(name, UNASSIGNED); }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    int size() {
+        return count;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
+    // The arguments written to a frame, for the callables that take them as a list
+    List<Object> arguments() {
+        if (count == 0) return List.of();
+        return Arrays.asList(Arrays.copyOf(slots, count));
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
+    // Only for the global environment
+    Global global(String name) {
+        return values.computeIfAbsent(name, (n) -> new Global());
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    Object getAt(int distance, int slot) {
+        Object value = ancestor(distance).slots[slot];
+        if (value instanceof NumberCell) return ((NumberCell)value).value;
+        return value;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 
-    void assignAt(Integer distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignNumberAt(int distance, int slot, double value) {
+        Object[] slots = ancestor(distance).slots;
+        if (slots[slot] instanceof NumberCell) {
+            ((NumberCell)slots[slot]).value = value;
+        } else {
+            slots[slot] = new NumberCell(value);
+        }
     }
 
     private Environment ancestor(int distance) {
@@ -9,6 +9,7 @@ abstract class Expr {
     R visitCallExpr(Call expr);
     R visitGetExpr(Get expr);
     R visitGroupingExpr(Grouping expr);
+    R visitInlineExpr(Inline expr);
     R visitLambdaExpr(Lambda expr);
     R visitLiteralExpr(Literal expr);
     R visitLogicalExpr(Logical expr);
@@ -32,6 +33,8 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+    Interpreter.Local local;
+    Environment.Global global;
   }
   static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -64,6 +67,7 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+    LoxCallable target;
   }
   static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -78,6 +82,7 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+    final PropertyCache cache = new PropertyCache();
   }
   static class Grouping extends Expr {
     Grouping(Expr expression) {
@@ -91,6 +96,22 @@ abstract class Expr {
 
     final Expr expression;
   }
+  static class Inline extends Expr {
+    Inline(Expr.Call call, List<Token> params, Expr body) {
+      this.call = call;
+      this.params = params;
+      this.body = body;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInlineExpr(this);
+    }
+
+    final Expr.Call call;
+    final List<Token> params;
+    final Expr body;
+  }
   static class Lambda extends Expr {
     Lambda(List<Token> params, List<Stmt> body) {
       this.params = params;
@@ -104,6 +125,10 @@ abstract class Expr {
 
     final List<Token> params;
     final List<Stmt> body;
+    boolean[] capturedParams;
+    boolean captures;
+    LoxFunction hoisted;
+    JitProfile profile;
   }
   static class Literal extends Expr {
     Literal(Object value) {
@@ -162,6 +187,8 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+    Interpreter.Local local;
+    final SuperCache cache = new SuperCache();
   }
   static class Ternary extends Expr {
     Ternary(Expr condition, Expr trueBranch, Expr falseBranch) {
@@ -190,6 +217,7 @@ abstract class Expr {
     }
 
     final Token keyword;
+    Interpreter.Local local;
   }
   static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -216,6 +244,9 @@ abstract class Expr {
     }
 
     final Token name;
+    Interpreter.Local local;
+    Environment.Global global;
+    boolean constant;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,248 @@
+package org.korren.jlox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Replaces the calls to small functions and methods, like accessors, by their body. Only the functions and the
+// methods of classes declared at the top level qualify, when their body is a single return of an expression without
+// calls or assignments. The arguments and the receiver have to be literals, locals or this, so the body can read them
+// in place of the parameters and of this, in any order and any number of times. The inlined call stays in the tree:
+// it runs when the name no longer refers to the function at run time.
+class Inliner extends AstRewriter {
+    // Larger bodies are not worth copying at every call
+    private static final int MAX_BODY_SIZE = 16;
+
+    // The functions and methods that can be inlined, with the globals their body reads
+    private final Map<String, Stmt.Function> functions = new HashMap<>();
+    private final Map<String, Stmt.Function> methods = new HashMap<>();
+    private final Map<Stmt.Function, Set<String>> globalsRead = new HashMap<>();
+    // The names of the locals in scope, innermost scope first
+    private final Deque<Set<String>> scopes = new ArrayDeque<>();
+
+    @Override
+    List<Stmt> run(List<Stmt> program) {
+        findCandidates(program);
+        return rewrite(program);
+    }
+
+    // A name declared twice, or a method in two classes, is left alone: the call could go to either
+    private void findCandidates(List<Stmt> program) {
+        Set<String> ambiguous = new HashSet<>();
+        Set<String> ambiguousMethods = new HashSet<>();
+        Set<String> globals = new HashSet<>();
+        Set<String> methodNames = new HashSet<>();
+        for (Stmt stmt : program) {
+            Token name = null;
+            if (stmt instanceof Stmt.Function) {
+                name = ((Stmt.Function)stmt).name;
+            } else if (stmt instanceof Stmt.Var) {
+                name = ((Stmt.Var)stmt).name;
+            } else if (stmt instanceof Stmt.Class) {
+                name = ((Stmt.Class)stmt).name;
+                for (Stmt.Function method : ((Stmt.Class)stmt).methods) {
+                    if (!methodNames.add(method.name.lexeme)) ambiguousMethods.add(method.name.lexeme);
+                    if (!method.name.lexeme.equals("init")) candidate(method, methods);
+                }
+            }
+            if (name != null && !globals.add(name.lexeme)) ambiguous.add(name.lexeme);
+            if (stmt instanceof Stmt.Function) candidate((Stmt.Function)stmt, functions);
+        }
+        functions.keySet().removeAll(ambiguous);
+        methods.keySet().removeAll(ambiguousMethods);
+    }
+
+    private void candidate(Stmt.Function function, Map<String, Stmt.Function> candidates) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return;
+        Expr value = ((Stmt.Return)function.body.get(0)).value;
+        if (value == null) return;
+
+        BodyCheck check = new BodyCheck(function.params);
+        check.rewrite(value);
+        if (check.inlinable && check.size <= MAX_BODY_SIZE) {
+            candidates.put(function.name.lexeme, function);
+            globalsRead.put(function, check.globals);
+        }
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr.Call call = (Expr.Call)super.visitCallExpr(expr);
+
+        Stmt.Function function = null;
+        Expr receiver = null;
+        if (call.callee instanceof Expr.Variable) {
+            Token name = ((Expr.Variable)call.callee).name;
+            if (!isLocal(name)) function = functions.get(name.lexeme);
+        } else if (call.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)call.callee;
+            receiver = get.object;
+            if (isOperand(receiver)) function = methods.get(get.name.lexeme);
+        }
+        if (function == null || function.params.size() != call.arguments.size()) return call;
+
+        Map<String, Expr> arguments = new HashMap<>();
+        for (int i = 0; i < call.arguments.size(); i++) {
+            if (!isOperand(call.arguments.get(i))) return call;
+            arguments.put(function.params.get(i).lexeme, call.arguments.get(i));
+        }
+        // The globals of the body must not be hidden by locals where it is copied
+        for (String global : globalsRead.get(function)) {
+            for (Set<String> scope : scopes) {
+                if (scope.contains(global)) return call;
+            }
+        }
+
+        Expr body = ((Stmt.Return)function.body.get(0)).value;
+        return new Expr.Inline(call, function.params, new Substitution(arguments, receiver).rewrite(body));
+    }
+
+    private boolean isOperand(Expr expr) {
+        if (expr instanceof Expr.Variable) return isLocal(((Expr.Variable)expr).name);
+        return expr instanceof Expr.Literal || expr instanceof Expr.This;
+    }
+
+    private boolean isLocal(Token name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name.lexeme)) return true;
+        }
+        return false;
+    }
+
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) scopes.peek().add(name.lexeme);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        scopes.push(new HashSet<>());
+        for (Token param : expr.params) declare(param);
+        Expr result = super.visitLambdaExpr(expr);
+        scopes.pop();
+        return result;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashSet<>());
+        Stmt result = super.visitBlockStmt(stmt);
+        scopes.pop();
+        return result;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        return super.visitClassStmt(stmt);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        return super.visitFunctionStmt(stmt);
+    }
+
+    @Override
+    Stmt.Function rewriteFunction(Stmt.Function function) {
+        scopes.push(new HashSet<>());
+        for (Token param : function.params) declare(param);
+        Stmt.Function result = super.rewriteFunction(function);
+        scopes.pop();
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Stmt result = super.visitVarStmt(stmt);
+        declare(stmt.name);
+        return result;
+    }
+
+    // Finds whether a body can be inlined, its size and the globals it reads
+    private static class BodyCheck extends AstRewriter {
+        private final Set<String> params = new HashSet<>();
+        final Set<String> globals = new HashSet<>();
+        boolean inlinable = true;
+        int size = 0;
+
+        BodyCheck(List<Token> params) {
+            for (Token param : params) this.params.add(param.lexeme);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            size++;
+            return super.rewrite(expr);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            inlinable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            inlinable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitLambdaExpr(Expr.Lambda expr) {
+            inlinable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            inlinable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            inlinable = false;
+            return expr;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            if (!params.contains(expr.name.lexeme)) globals.add(expr.name.lexeme);
+            return expr;
+        }
+    }
+
+    // Copies a body with the arguments in place of the parameters and the receiver in place of this. The variables
+    // are new nodes, they get resolved where the copy is.
+    private static class Substitution extends AstRewriter {
+        private final Map<String, Expr> arguments;
+        private final Expr receiver;
+
+        Substitution(Map<String, Expr> arguments, Expr receiver) {
+            this.arguments = arguments;
+            this.receiver = receiver;
+        }
+
+        private static Expr copy(Expr operand) {
+            if (operand instanceof Expr.Variable) return new Expr.Variable(((Expr.Variable)operand).name);
+            if (operand instanceof Expr.This) return new Expr.This(((Expr.This)operand).keyword);
+            return operand;
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            return copy(receiver);
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            Expr argument = arguments.get(expr.name.lexeme);
+            if (argument != null) return copy(argument);
+            return new Expr.Variable(expr.name);
+        }
+    }
+}
@@ -1,69 +1,82 @@
 package org.korren.jlox;
 
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     final Environment globals = new Environment();
+    // Where the code of the ClosureCompiler keeps its locals
+    final ValueStack stack = new ValueStack();
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
-    private PrintStream stdOut;
+    private boolean jitEnabled = false;
+    private Output out;
 
     Interpreter() {
-        this.stdOut = System.out;
-        globals.define("clock", new LoxCallable() {
+        this.out = new Output(System.out, false);
+        globals.define("clock", new NumberNative() {
             @Override
-            public Object call(Interpreter interpreter, List<Object> arguments) {
+            double callNumber() {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
-
-            @Override
-            public int arity() { return 0; }
-
-            @Override
-            public String toString() { return "<native fn>"; }
         });
     }
 
-    void interpret(List<Stmt> statements, PrintStream stdOut) {
-        PrintStream currentOut = this.stdOut;
-        this.stdOut = stdOut;
-        try {
+    void interpret(List<Stmt> statements, Output out) {
+        run(() -> {
             for (Stmt statement : statements) {
                 execute(statement);
             }
+        }, out);
+    }
+
+    // Runs a program that was compiled against this interpreter's globals and resolved variables
+    void run(Runnable program, Output out) {
+        Output currentOut = this.out;
+        this.out = out;
+        try {
+            program.run();
         } catch (RuntimeError error) {
+            // What the program printed comes before the error
+            out.flush();
             Lox.runtimeError(error);
         } finally {
-            this.stdOut = currentOut;
+            out.flush();
+            this.out = currentOut;
         }
     }
 
-    void interpret(List<Stmt> statements) {
-        interpret(statements, System.out);
+    private Completion execute(Stmt statement) {
+        return statement.accept(this);
+    }
+
+    // Where the Resolver found a local variable: how many environments up, and at which slot. The Resolver stores it
+    // in the nodes reading or assigning variables, which have null for globals.
+    record Local(int depth, int slot) {}
+
+    void setJitEnabled(boolean jitEnabled) {
+        this.jitEnabled = jitEnabled;
     }
 
-    private void execute(Stmt statement) {
-        statement.accept(this);
+    // The profile shared by all the functions created from the given declaration, or null if the JIT is disabled. It
+    // is kept on the declaration, so it goes away with the program.
+    private JitProfile jitProfile(Stmt.Function declaration) {
+        if (!jitEnabled) return null;
+        if (declaration.profile == null) declaration.profile = new JitProfile();
+        return declaration.profile;
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    private JitProfile jitProfile(Expr.Lambda declaration) {
+        if (!jitEnabled) return null;
+        if (declaration.profile == null) declaration.profile = new JitProfile();
+        return declaration.profile;
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
-            }
-            return text;
-        }
+        if (object instanceof Double) return Output.format((double)object);
 
         return object.toString();
     }
@@ -72,11 +85,12 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-           environment.assignAt(distance, expr.name, value);
+        Local local = expr.local;
+        if (local != null) {
+            environment.assignAt(local.depth, local.slot, value);
         } else {
-            globals.assign(expr.name, value);
+            if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+            expr.global.assign(expr.name, value);
         }
 
         return value;
@@ -93,7 +107,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookupVariable(expr.keyword, expr);
+        return environment.getAt(expr.local.depth, expr.local.slot);
     }
 
     @Override
@@ -119,21 +133,9 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 checkNumberOperands(expr.operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
-                if (left instanceof Double && right instanceof Double) {
-                    return (double)left + (double)right;
-                }
-
-                if (left instanceof String && (right instanceof String || right instanceof Double)) {
-                    return left + stringify(right);
-                }
-
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or left operand must be a string");
+                return add(expr.operator, left, right);
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
-                if ((double)right == 0) {
-                    throw new RuntimeError(expr.operator, "Division by zero");
-                }
-                return (double)left / (double)right;
+                return divide(expr.operator, left, right);
             case STAR:
                 checkNumberOperands(expr.operator, left, right);
                 return (double)left * (double)right;
@@ -146,44 +148,166 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return null;
     }
 
+    static Object add(Token operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+
+        if (left instanceof CharSequence && (right instanceof CharSequence || right instanceof Double)) {
+            return Rope.concat((CharSequence)left, right instanceof Double ? stringify(right) : (CharSequence)right);
+        }
+
+        throw new RuntimeError(operator, "Operands must be two numbers or left operand must be a string");
+    }
+
+    static Object divide(Token operator, Object left, Object right) {
+        checkNumberOperands(operator, left, right);
+        if ((double)right == 0) {
+            throw new RuntimeError(operator, "Division by zero");
+        }
+        return (double)left / (double)right;
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            // Calling a method directly does not need the bound method, it is only made for methods used as values
+            Expr.Get get = (Expr.Get)expr.callee;
+            LoxInstance instance = instance(evaluate(get.object), get.name);
+            LoxFunction method = instance.getMethod(get.name, get.cache);
+            if (method != null) {
+                return call(method, method.frame(instance), expr.arguments, expr.paren);
+            }
+            callee = instance.get(get.name, get.cache);
+        } else if (expr.callee instanceof Expr.Super) {
+            // Calling a method of the superclass does not need the bound method either, it runs with the current this
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            LoxFunction method = superMethod(superExpr);
+            return call(method, method.frame(superReceiver(superExpr)), expr.arguments, expr.paren);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
+        if (expr.callee instanceof Expr.Variable && ((Expr.Variable)expr.callee).constant) {
+            return callConstant(expr, callee);
+        }
+        return call(callee, frame(callee, expr.arguments.size()), expr.arguments, expr.paren);
+    }
 
-        List<Object> arguments = new ArrayList<>();
+    // A call of a function or class bound once at the top level is linked to it the first time, and then runs it
+    // without checking what it is and its arity again
+    private Object callConstant(Expr.Call expr, Object callee) {
+        LoxCallable target = expr.target;
+        if (callee != target) {
+            if (!(callee instanceof LoxFunction || callee instanceof LoxClass)
+                    || ((LoxCallable)callee).arity() != expr.arguments.size()) {
+                return call(callee, frame(callee, expr.arguments.size()), expr.arguments, expr.paren);
+            }
+            target = (LoxCallable)callee;
+            expr.target = target;
+        }
+
+        LoxFunction function;
+        Environment frame;
+        if (target instanceof LoxClass) {
+            // The instance goes straight into the initializer's frame, the initializer is not bound to it
+            LoxClass klass = (LoxClass)target;
+            function = klass.initializer;
+            if (function == null) return new LoxInstance(klass);
+            frame = function.frame(new LoxInstance(klass));
+        } else {
+            function = (LoxFunction)target;
+            frame = function.frame();
+        }
         for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+            frame.define(null, evaluate(argument));
+        }
+        return function.run(this, frame);
+    }
+
+    // The inlined body only runs when the call goes to the function it was copied from
+    @Override
+    public Object visitInlineExpr(Expr.Inline expr) {
+        Expr callee = expr.call.callee;
+        LoxFunction function;
+        if (callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)callee;
+            function = instance(evaluate(get.object), get.name).getMethod(get.name, get.cache);
+        } else {
+            Object value = evaluate(callee);
+            function = value instanceof LoxFunction ? (LoxFunction)value : null;
+        }
+
+        if (function != null && function.isDeclaredWith(expr.params)) return evaluate(expr.body);
+        return evaluate(expr.call);
+    }
+
+    private Object call(Object callee, Environment frame, List<Expr> arguments, Token paren) {
+        for (Expr argument : arguments) {
+            frame.define(null, evaluate(argument));
+        }
+        return call(callee, frame, paren);
+    }
+
+    // Lox functions and classes run in the frame their arguments are written to, the other callables get a frame
+    // only holding the arguments, which they receive as a list
+    static Environment frame(Object callee, int argumentCount) {
+        if (callee instanceof LoxFunction) return ((LoxFunction)callee).frame();
+        if (callee instanceof LoxClass) return ((LoxClass)callee).frame(argumentCount);
+        return new Environment(null, argumentCount);
+    }
+
+    Object call(Object callee, Environment frame, Token paren) {
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction)callee;
+            checkArity(function, frame.size(), paren);
+            return function.run(this, frame);
+        }
+        if (callee instanceof LoxClass) {
+            LoxClass klass = (LoxClass)callee;
+            checkArity(klass, frame.size(), paren);
+            return klass.call(this, frame);
         }
 
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
+        checkArity(function, frame.size(), paren);
+        return function.call(this, frame.arguments());
+    }
+
+    static void checkArity(LoxCallable function, int argumentCount, Token paren) {
+        if (argumentCount != function.arity()) {
             throw new RuntimeError(
-                    expr.paren,
-                    "Expected " + function.arity() + " arguments but got " + arguments.size() + "."
+                    paren,
+                    "Expected " + function.arity() + " arguments but got " + argumentCount + "."
             );
         }
-
-        return function.call(this, arguments);
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return instance(evaluate(expr.object), expr.name).get(expr.name, expr.cache);
+    }
+
+    static LoxInstance instance(Object object, Token name) {
         if (object instanceof LoxInstance) {
-            return ((LoxInstance) object).get(expr.name);
+            return (LoxInstance)object;
         }
 
-        throw new RuntimeError(expr.name, "Only instance have properties.");
+        throw new RuntimeError(name, "Only instance have properties.");
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
+        // A string may be a Rope, which is only equal to the String with its characters once flattened
+        if (a instanceof Rope) a = a.toString();
+        if (b instanceof Rope) b = b.toString();
         return a.equals(b);
     }
 
@@ -194,7 +318,11 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LoxFunction(expr, environment);
+        // A lambda using no variable from around it is the same function every time, so it is only created once. Its
+        // evaluations give the same function on every backend, and compare equal.
+        if (expr.captures) return new LoxFunction(expr, environment, jitProfile(expr));
+        if (expr.hoisted == null) expr.hoisted = new LoxFunction(expr, null, jitProfile(expr));
+        return expr.hoisted;
     }
 
     @Override
@@ -230,17 +358,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+        return superMethod(expr).bind(superReceiver(expr));
+    }
 
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
-        if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
-        }
+    private LoxFunction superMethod(Expr.Super expr) {
+        // "super" and "this" are always the only variables in their environments
+        LoxClass superclass = (LoxClass)environment.getAt(expr.local.depth, 0);
+        return expr.cache.lookup(superclass, expr.method);
+    }
 
-        return method.bind(object);
+    private LoxInstance superReceiver(Expr.Super expr) {
+        return (LoxInstance)environment.getAt(expr.local.depth - 1, 0);
     }
 
     @Override
@@ -261,19 +389,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookupVariable(expr.name, expr);
-    }
-
-    private Object lookupVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
-        } else {
-            return globals.get(name);
+        Local local = expr.local;
+        if (local != null) {
+            return Environment.checkAssigned(expr.name, environment.getAt(local.depth, local.slot));
         }
+
+        // The cell of a global is looked up once
+        if (expr.global == null) expr.global = globals.global(expr.name.lexeme);
+        return expr.global.get(expr.name);
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
@@ -283,76 +409,84 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        return executeBlock(stmt.statements, new Environment(environment));
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                Completion completion = execute(statement);
+                if (completion != null) return completion;
             }
+            return null;
         } finally {
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
         return null;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment);
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, environment, jitProfile(stmt));
         environment.define(stmt.name.lexeme, function);
         return null;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
         return null;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
-        Object value = evaluate(stmt.expression);
-        stdOut.println(stringify(value));
+    public Completion visitPrintStmt(Stmt.Print stmt) {
+        print(evaluate(stmt.expression));
         return null;
     }
 
+    void print(Object value) {
+        if (value instanceof Double) {
+            out.printLine((double)value);
+        } else {
+            out.printLine(stringify(value));
+        }
+    }
+
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        return Completion.returning(value);
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         if (stmt.initializer != null) {
             Object value = evaluate(stmt.initializer);
             environment.define(stmt.name.lexeme, value);
@@ -364,24 +498,42 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        try {
-            while (isTruthy(evaluate(stmt.condition))) {
-                try {
-                    execute(stmt.body);
-                } catch (Continue ignored) {}
-            }
-        } catch (Break ignored) {}
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        if (stmt.counted != null) return executeCountedLoop(stmt.counted);
+
+        while (isTruthy(evaluate(stmt.condition))) {
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion != null && completion != Completion.CONTINUE) return completion;
+        }
+        return null;
+    }
+
+    // The counter is kept in a double, and stored in place in its variable for the body
+    private Completion executeCountedLoop(CountedLoop loop) {
+        Local counter = loop.counter.local;
+        Object start = environment.getAt(counter.depth(), counter.slot());
+        double limit = loop.number(evaluate(loop.limit));
+        double value = loop.number(start);
+        while (loop.test(value, limit)) {
+            Completion completion = executeBlock(loop.body, new Environment(environment));
+            if (completion == Completion.BREAK) break;
+            if (completion != null) return completion;
+
+            value += loop.step;
+            environment.assignNumberAt(counter.depth(), counter.slot(), value);
+            limit = loop.number(evaluate(loop.limit));
+        }
         return null;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new Break();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -390,8 +542,6 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
             environment = new Environment(environment);
             environment.define("super", superclass);
@@ -399,12 +549,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
         Map<String, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+            LoxFunction function = new LoxFunction(
+                    method, environment, method.name.lexeme.equals("init"), jitProfile(method)
+            );
             methods.put(method.name.lexeme, function);
         }
         Map<String, LoxFunction> classMethods = new HashMap<>();
         for (Stmt.Function method : stmt.classMethods) {
-            LoxFunction function = new LoxFunction(method, environment, false);
+            LoxFunction function = new LoxFunction(method, environment, false, jitProfile(method));
             classMethods.put(method.name.lexeme, function);
         }
 
@@ -414,12 +566,14 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
+        // The methods only capture the environment, so the class name can be defined once the class is complete.
+        // This keeps its slot in the declaration order the Resolver expects.
+        environment.define(stmt.name.lexeme, klass);
         return null;
     }
 
     @Override
-    public Void visitContinueStmt(Stmt.Continue stmt) {
-        throw new Continue();
+    public Completion visitContinueStmt(Stmt.Continue stmt) {
+        return Completion.CONTINUE;
     }
 }
@@ -0,0 +1,575 @@
+package org.korren.jlox;
+
+import org.korren.jlox.jit.ClassFile;
+import org.korren.jlox.jit.ClassFileLimitException;
+import org.korren.jlox.jit.Code;
+import org.korren.jlox.jit.Label;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Compiles the body of a hot function into a hidden class implementing CompiledFunction, so HotSpot can optimize
+// the Lox code itself. The function's own variables become JVM locals, which is only valid as long as nothing can
+// capture them, so functions declaring closures or classes are left to the Interpreter. Variables from outside the
+// function are still read from its closure Environment at the depth the Resolver found for them, or from the cell of
+// the global.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String OBJECT = "java/lang/Object";
+    private static final String OBJECT_DESC = "Ljava/lang/Object;";
+    private static final String TOKEN = "org/korren/jlox/Token";
+    private static final String TOKEN_DESC = "Lorg/korren/jlox/Token;";
+    private static final String PROPERTY_CACHE = "org/korren/jlox/PropertyCache";
+    private static final String PROPERTY_CACHE_DESC = "Lorg/korren/jlox/PropertyCache;";
+    private static final String SUPER_CACHE = "org/korren/jlox/SuperCache";
+    private static final String SUPER_CACHE_DESC = "Lorg/korren/jlox/SuperCache;";
+    private static final String ENVIRONMENT = "org/korren/jlox/Environment";
+    private static final String ENVIRONMENT_DESC = "Lorg/korren/jlox/Environment;";
+    private static final String GLOBAL = "org/korren/jlox/Environment$Global";
+    private static final String GLOBAL_DESC = "Lorg/korren/jlox/Environment$Global;";
+    private static final String INTERPRETER = "org/korren/jlox/Interpreter";
+    private static final String INTERPRETER_DESC = "Lorg/korren/jlox/Interpreter;";
+    private static final String LOX_INSTANCE_DESC = "Lorg/korren/jlox/LoxInstance;";
+    private static final String LOX_FUNCTION_DESC = "Lorg/korren/jlox/LoxFunction;";
+    private static final String RUNTIME = "org/korren/jlox/JitRuntime";
+    private static final String CALL_DESC = "(" + INTERPRETER_DESC + ENVIRONMENT_DESC + ")" + OBJECT_DESC;
+    // Locals of the generated call method. The frame of the call comes in the closure's local, which holds the
+    // closure once the arguments are read from the frame.
+    private static final int THIS = 0;
+    private static final int INTERPRETER_LOCAL = 1;
+    private static final int CLOSURE_LOCAL = 2;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // Thrown when the function uses something we don't compile, it then just stays interpreted
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private record Loop(Label start, Label end) {}
+
+    private final Interpreter interpreter;
+    private final String className;
+    private final Code code;
+    // Runtime values the code needs, like the tokens for error reporting, passed to the generated constructor
+    private final List<Object> constants = new ArrayList<>();
+    // The function's scopes, mapping variable names to JVM locals
+    private final Deque<Map<String, Integer>> scopes = new ArrayDeque<>();
+    // The JVM locals of variables declared without an initializer, whose reads check they were assigned since
+    private final Set<Integer> unassigned = new HashSet<>();
+    private Loop loop = null;
+
+    private JitCompiler(Interpreter interpreter, String className, Code code) {
+        this.interpreter = interpreter;
+        this.className = className;
+        this.code = code;
+    }
+
+    // Returns null when the function cannot be compiled
+    static CompiledFunction compile(Interpreter interpreter, String name, List<Token> params, List<Stmt> body) {
+        String className = "org/korren/jlox/LoxJit$" + name;
+        ClassFile classFile = new ClassFile(
+                ClassFile.ACC_FINAL, className, OBJECT, "org/korren/jlox/CompiledFunction"
+        );
+        classFile.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[" + OBJECT_DESC);
+
+        JitCompiler compiler = new JitCompiler(
+                interpreter, className, classFile.addMethod(ClassFile.ACC_PUBLIC, "call", CALL_DESC)
+        );
+        try {
+            compiler.function(params, body);
+            writeConstructor(classFile, className);
+
+            Object[] constants = compiler.constants.toArray();
+            MethodHandles.Lookup hidden = lookup.defineHiddenClass(classFile.toByteArray(), true);
+            return (CompiledFunction)hidden
+                    .findConstructor(hidden.lookupClass(), MethodType.methodType(void.class, Object[].class))
+                    .invoke(constants);
+        } catch (Unsupported | ClassFileLimitException e) {
+            return null;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Failed to load compiled function '" + name + "'", e);
+        }
+    }
+
+    private static void writeConstructor(ClassFile classFile, String className) {
+        Code init = classFile.addMethod(0, "<init>", "([" + OBJECT_DESC + ")V");
+        init.aload(0);
+        init.invokespecial(OBJECT, "<init>", "()V");
+        init.aload(0);
+        init.aload(1);
+        init.putfield(className, "constants", "[" + OBJECT_DESC);
+        init.vreturn();
+    }
+
+    private void function(List<Token> params, List<Stmt> body) {
+        beginScope();
+        for (int i = 0; i < params.size(); i++) {
+            code.aload(CLOSURE_LOCAL);
+            code.iconst(0);
+            code.iconst(i);
+            code.invokevirtual(ENVIRONMENT, "getAt", "(II)" + OBJECT_DESC);
+            declare(params.get(i));
+        }
+        code.aload(CLOSURE_LOCAL);
+        code.getfield(ENVIRONMENT, "enclosing", ENVIRONMENT_DESC);
+        code.astore(CLOSURE_LOCAL);
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        code.aconstNull();
+        code.areturn();
+        endScope();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+
+        Integer local = lookupLocal(expr.name);
+        if (local != null) {
+            code.dup();
+            code.astore(local);
+            return null;
+        }
+
+        Interpreter.Local resolved = expr.local;
+        if (resolved != null) {
+            code.aload(CLOSURE_LOCAL);
+            code.iconst(closureDistance(resolved));
+            code.iconst(resolved.slot());
+            runtime("assignAt", "(" + OBJECT_DESC + ENVIRONMENT_DESC + "II)" + OBJECT_DESC);
+        } else {
+            loadConstant(interpreter.globals.global(expr.name.lexeme), GLOBAL);
+            loadConstant(expr.name, TOKEN);
+            runtime("assignGlobal", "(" + OBJECT_DESC + GLOBAL_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        String operation = switch (expr.operator.type) {
+            case GREATER -> "greater";
+            case GREATER_EQUAL -> "greaterEqual";
+            case LESS -> "less";
+            case LESS_EQUAL -> "lessEqual";
+            case MINUS -> "subtract";
+            case PLUS -> "add";
+            case SLASH -> "divide";
+            case STAR -> "multiply";
+            case BANG_EQUAL -> "notEqual";
+            case EQUAL_EQUAL -> "equal";
+            default -> null;
+        };
+
+        if (operation == null) {
+            // The comma operator, the Interpreter evaluates it to nil
+            code.pop();
+            code.pop();
+            code.aconstNull();
+        } else if (expr.operator.type == TokenType.EQUAL_EQUAL || expr.operator.type == TokenType.BANG_EQUAL) {
+            runtime(operation, "(" + OBJECT_DESC + OBJECT_DESC + ")" + OBJECT_DESC);
+        } else {
+            loadConstant(expr.operator, TOKEN);
+            runtime(operation, "(" + OBJECT_DESC + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            compileMethodCall((Expr.Get)expr.callee, expr);
+            return null;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            compileSuperCall((Expr.Super)expr.callee, expr);
+            return null;
+        }
+
+        compile(expr.callee);
+        code.dup();
+        code.iconst(expr.arguments.size());
+        runtime("frame", "(" + OBJECT_DESC + "I)" + ENVIRONMENT_DESC);
+        compileArguments(expr.arguments);
+        loadConstant(expr.paren, TOKEN);
+        code.aload(INTERPRETER_LOCAL);
+        runtime("call", "(" + OBJECT_DESC + ENVIRONMENT_DESC + TOKEN_DESC + INTERPRETER_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    // Leaves the unbound method (or the value of the property, when it is not a method) and the frame of the call
+    // under the arguments, so the method runs without creating the bound method
+    private void compileMethodCall(Expr.Get get, Expr.Call expr) {
+        compile(get.object);
+        loadConstant(get.name, TOKEN);
+        runtime("instance", "(" + OBJECT_DESC + TOKEN_DESC + ")" + LOX_INSTANCE_DESC);
+        code.dup();
+        loadConstant(get.name, TOKEN);
+        loadConstant(get.cache, PROPERTY_CACHE);
+        runtime(
+                "methodOrProperty",
+                "(" + LOX_INSTANCE_DESC + TOKEN_DESC + PROPERTY_CACHE_DESC + ")" + OBJECT_DESC
+        );
+        code.dupX1();
+        code.iconst(expr.arguments.size());
+        loadConstant(get.name, TOKEN);
+        runtime("frame", "(" + LOX_INSTANCE_DESC + OBJECT_DESC + "I" + TOKEN_DESC + ")" + ENVIRONMENT_DESC);
+        compileArguments(expr.arguments);
+        loadConstant(expr.paren, TOKEN);
+        code.aload(INTERPRETER_LOCAL);
+        runtime("call", "(" + OBJECT_DESC + ENVIRONMENT_DESC + TOKEN_DESC + INTERPRETER_DESC + ")" + OBJECT_DESC);
+    }
+
+    // Leaves the method of the superclass and its frame, with the current this, under the arguments
+    private void compileSuperCall(Expr.Super callee, Expr.Call expr) {
+        loadSuperMethod(callee);
+        runtime(
+                "superMethod",
+                "(" + ENVIRONMENT_DESC + "I" + TOKEN_DESC + SUPER_CACHE_DESC + ")" + LOX_FUNCTION_DESC
+        );
+        code.dup();
+        code.aload(CLOSURE_LOCAL);
+        code.iconst(closureDistance(callee.local));
+        runtime("superFrame", "(" + LOX_FUNCTION_DESC + ENVIRONMENT_DESC + "I)" + ENVIRONMENT_DESC);
+        compileArguments(expr.arguments);
+        loadConstant(expr.paren, TOKEN);
+        code.aload(INTERPRETER_LOCAL);
+        runtime("call", "(" + OBJECT_DESC + ENVIRONMENT_DESC + TOKEN_DESC + INTERPRETER_DESC + ")" + OBJECT_DESC);
+    }
+
+    // Writes the arguments to the frame on top of the stack, leaving it there
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            code.dup();
+            compile(argument);
+            runtime("argument", "(" + ENVIRONMENT_DESC + OBJECT_DESC + ")V");
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        loadConstant(expr.cache, PROPERTY_CACHE);
+        runtime("get", "(" + OBJECT_DESC + TOKEN_DESC + PROPERTY_CACHE_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    // Compiled as the plain call, only the tree-walking tiers check the guard of an inlined call
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        compile(expr.call);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.aconstNull();
+        } else if (expr.value instanceof Boolean) {
+            code.getstatic("java/lang/Boolean", (boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else if (expr.value instanceof String) {
+            code.ldc((String)expr.value);
+        } else {
+            loadConstant(expr.value, "java/lang/Double");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        code.dup();
+        runtime("isTruthy", "(" + OBJECT_DESC + ")Z");
+
+        Label end = code.newLabel();
+        if (expr.operator.type == TokenType.OR) {
+            code.ifne(end);
+        } else {
+            code.ifeq(end);
+        }
+        code.pop();
+        compile(expr.right);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        loadConstant(expr.name, TOKEN);
+        runtime("checkInstance", "(" + OBJECT_DESC + TOKEN_DESC + ")" + LOX_INSTANCE_DESC);
+        compile(expr.value);
+        loadConstant(expr.name, TOKEN);
+        runtime("set", "(" + LOX_INSTANCE_DESC + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        loadSuperMethod(expr);
+        runtime(
+                "superMethodValue",
+                "(" + ENVIRONMENT_DESC + "I" + TOKEN_DESC + SUPER_CACHE_DESC + ")" + OBJECT_DESC
+        );
+        return null;
+    }
+
+    // Loads the arguments of the runtime's super method lookups
+    private void loadSuperMethod(Expr.Super expr) {
+        code.aload(CLOSURE_LOCAL);
+        code.iconst(closureDistance(expr.local));
+        loadConstant(expr.method, TOKEN);
+        loadConstant(expr.cache, SUPER_CACHE);
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        Label falseBranch = code.newLabel();
+        Label end = code.newLabel();
+
+        compileCondition(expr.condition);
+        code.ifeq(falseBranch);
+        compile(expr.trueBranch);
+        code.goTo(end);
+        code.mark(falseBranch);
+        compile(expr.falseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        loadFromClosure(expr.local);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        if (expr.operator.type == TokenType.BANG) {
+            runtime("not", "(" + OBJECT_DESC + ")" + OBJECT_DESC);
+        } else {
+            loadConstant(expr.operator, TOKEN);
+            runtime("negate", "(" + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        Integer local = lookupLocal(expr.name);
+        if (local != null) {
+            code.aload(local);
+            if (unassigned.contains(local)) checkAssigned(expr.name);
+            return null;
+        }
+
+        Interpreter.Local resolved = expr.local;
+        if (resolved != null) {
+            loadFromClosure(resolved);
+            checkAssigned(expr.name);
+        } else {
+            loadConstant(interpreter.globals.global(expr.name.lexeme), GLOBAL);
+            loadConstant(expr.name, TOKEN);
+            runtime("getGlobal", "(" + GLOBAL_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        code.goTo(loop.end());
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        code.goTo(loop.start());
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        code.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label elseBranch = code.newLabel();
+        Label end = code.newLabel();
+
+        compileCondition(stmt.condition);
+        code.ifeq(elseBranch);
+        compile(stmt.thenBranch);
+        code.goTo(end);
+        code.mark(elseBranch);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        code.aload(INTERPRETER_LOCAL);
+        compile(stmt.expression);
+        code.invokevirtual(INTERPRETER, "print", "(" + OBJECT_DESC + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value != null) {
+            compile(stmt.value);
+        } else {
+            code.aconstNull();
+        }
+        code.areturn();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+            declare(stmt.name);
+        } else {
+            runtime("unassigned", "()" + OBJECT_DESC);
+            unassigned.add(declare(stmt.name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        Loop enclosing = loop;
+        loop = new Loop(code.newLabel(), code.newLabel());
+
+        code.mark(loop.start());
+        compileCondition(stmt.condition);
+        code.ifeq(loop.end());
+        compile(stmt.body);
+        code.goTo(loop.start());
+        code.mark(loop.end());
+
+        loop = enclosing;
+        return null;
+    }
+
+    // Leaves the truthiness of the condition on the stack as a JVM boolean
+    private void compileCondition(Expr condition) {
+        compile(condition);
+        runtime("isTruthy", "(" + OBJECT_DESC + ")Z");
+    }
+
+    private void beginScope() {
+        scopes.push(new HashMap<>());
+    }
+
+    private void endScope() {
+        scopes.pop();
+    }
+
+    // Stores the value on top of the stack in a new local for the variable
+    private int declare(Token name) {
+        int local = code.newLocal();
+        code.astore(local);
+        scopes.peek().put(name.lexeme, local);
+        return local;
+    }
+
+    private Integer lookupLocal(Token name) {
+        for (Map<String, Integer> scope : scopes) {
+            Integer local = scope.get(name.lexeme);
+            if (local != null) return local;
+        }
+        return null;
+    }
+
+    // How many environments up from the closure a variable the Resolver found outside the function is
+    private int closureDistance(Interpreter.Local resolved) {
+        return resolved.depth() - scopes.size();
+    }
+
+    private void loadFromClosure(Interpreter.Local resolved) {
+        code.aload(CLOSURE_LOCAL);
+        code.iconst(closureDistance(resolved));
+        code.iconst(resolved.slot());
+        code.invokevirtual(ENVIRONMENT, "getAt", "(II)" + OBJECT_DESC);
+    }
+
+    // Checks the value on top of the stack, read from the variable, is not the unassigned sentinel
+    private void checkAssigned(Token name) {
+        loadConstant(name, TOKEN);
+        runtime("checkAssigned", "(" + OBJECT_DESC + TOKEN_DESC + ")" + OBJECT_DESC);
+    }
+
+    private void loadConstant(Object value, String type) {
+        int index = constants.size();
+        constants.add(value);
+        code.aload(THIS);
+        code.getfield(className, "constants", "[" + OBJECT_DESC);
+        code.iconst(index);
+        code.aaload();
+        code.checkcast(type);
+    }
+
+    private void runtime(String name, String descriptor) {
+        code.invokestatic(RUNTIME, name, descriptor);
+    }
+}
@@ -0,0 +1,27 @@
+package org.korren.jlox;
+
+import java.util.List;
+
+// Invocation count and compiled code of a function declaration, shared by all the LoxFunctions created from it
+class JitProfile {
+    static final int DEFAULT_THRESHOLD = Integer.getInteger("jlox.jit.threshold", 50);
+    // The invocations before a function gets compiled. The tests compile every function on its first call.
+    private static int threshold = DEFAULT_THRESHOLD;
+
+    private int invocations = 0;
+    private boolean failed = false;
+    private CompiledFunction compiled = null;
+
+    static void setThreshold(int threshold) {
+        JitProfile.threshold = threshold;
+    }
+
+    // Counts an invocation, returns the compiled code once the function got hot enough and could be compiled
+    CompiledFunction compiledCode(Interpreter interpreter, String name, List<Token> params, List<Stmt> body) {
+        if (compiled == null && !failed && ++invocations >= threshold) {
+            compiled = JitCompiler.compile(interpreter, name, params, body);
+            failed = compiled == null;
+        }
+        return compiled;
+    }
+}
@@ -0,0 +1,151 @@
+package org.korren.jlox;
+
+// Operations called from the code generated by the JitCompiler. They have the same semantics as the matching
+// parts of the Interpreter.
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static boolean isTruthy(Object object) {
+        return Interpreter.isTruthy(object);
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        Interpreter.checkNumberOperand(operator, right);
+        return -(double)right;
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
+    }
+
+    static Object add(Object left, Object right, Token operator) {
+        return Interpreter.add(operator, left, right);
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        Interpreter.checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        return Interpreter.divide(operator, left, right);
+    }
+
+    static Object unassigned() {
+        return Environment.UNASSIGNED;
+    }
+
+    static Object checkAssigned(Object value, Token name) {
+        return Environment.checkAssigned(name, value);
+    }
+
+    static Object getGlobal(Environment.Global global, Token name) {
+        return global.get(name);
+    }
+
+    static Object assignGlobal(Object value, Environment.Global global, Token name) {
+        global.assign(name, value);
+        return value;
+    }
+
+    static Object assignAt(Object value, Environment environment, int distance, int slot) {
+        environment.assignAt(distance, slot, value);
+        return value;
+    }
+
+    static Environment frame(Object callee, int argumentCount) {
+        return Interpreter.frame(callee, argumentCount);
+    }
+
+    static void argument(Environment frame, Object value) {
+        frame.define(null, value);
+    }
+
+    static Object call(Object callee, Environment frame, Token paren, Interpreter interpreter) {
+        return interpreter.call(callee, frame, paren);
+    }
+
+    static Object get(Object object, Token name, PropertyCache cache) {
+        return Interpreter.instance(object, name).get(name, cache);
+    }
+
+    static LoxInstance instance(Object object, Token name) {
+        return Interpreter.instance(object, name);
+    }
+
+    // The unbound method for a method call, or the value of the property if it is not a method
+    static Object methodOrProperty(LoxInstance instance, Token name, PropertyCache cache) {
+        LoxFunction method = instance.getMethod(name, cache);
+        if (method != null) return method;
+        return instance.get(name, cache);
+    }
+
+    // The frame of a method call, or of a call to the value of the property
+    static Environment frame(LoxInstance instance, Object callee, int argumentCount, Token name) {
+        // Unbound methods never escape as values, so a property holding one was found as a method
+        if (instance.isMethod(name, callee)) return ((LoxFunction)callee).frame(instance);
+        return Interpreter.frame(callee, argumentCount);
+    }
+
+    static LoxInstance checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance)object;
+    }
+
+    static Object set(LoxInstance object, Object value, Token name) {
+        object.set(name, value);
+        return value;
+    }
+
+    static LoxFunction superMethod(Environment environment, int distance, Token method, SuperCache cache) {
+        return cache.lookup((LoxClass)environment.getAt(distance, 0), method);
+    }
+
+    static Object superMethodValue(Environment environment, int distance, Token method, SuperCache cache) {
+        return superMethod(environment, distance, method, cache).bind(superReceiver(environment, distance));
+    }
+
+    // The frame of a call to a method of the superclass, with the current this
+    static Environment superFrame(LoxFunction method, Environment environment, int distance) {
+        return method.frame(superReceiver(environment, distance));
+    }
+
+    private static LoxInstance superReceiver(Environment environment, int distance) {
+        return (LoxInstance)environment.getAt(distance - 1, 0);
+    }
+}
@@ -1,5 +1,8 @@
 package org.korren.jlox;
 
+import org.korren.jlox.vm.FunctionProto;
+import org.korren.jlox.vm.VM;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -7,25 +10,93 @@ import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 public class Lox {
+    // The available ways of executing a resolved program
+    public enum Backend {
+        INTERPRETER,
+        // The interpreter, compiling hot functions to JVM bytecode
+        JIT,
+        // The resolved AST converted into a tree of Java lambdas
+        CLOSURES,
+        VM
+    }
+
+    // The optimization passes run between the resolver and the backend, in this order
+    public enum Optimization {
+        // Calls to small functions and accessor methods are replaced by their body
+        INLINING("inline-functions"),
+        // Local variables initialized with a literal and never assigned are replaced by the literal
+        CONSTANT_PROPAGATION("propagate-constants"),
+        // Operators on literals are replaced by their value
+        CONSTANT_FOLDING("fold-constants"),
+        // Branches with a literal condition keep only the arm that runs
+        DEAD_BRANCHES("eliminate-dead-branches"),
+        // Statements after a return, break or continue are removed
+        UNREACHABLE_CODE("remove-unreachable-code"),
+        // For loops counting a variable by a literal step keep it in a double
+        COUNTED_LOOPS("counted-loops");
+
+        final String name;
+
+        Optimization(String name) {
+            this.name = name;
+        }
+    }
+
+    private static Backend backend = Backend.INTERPRETER;
+    private static Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+    // Where the optimizer reports what each pass removed, null not to report
+    private static PrintStream optimizationReport = null;
     private static Interpreter interpreter = new Interpreter();
+    private static VM vm = new VM();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
     static PrintStream stdErr = System.err;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        int options = 0;
+        while (options < args.length && args[options].startsWith("-")) {
+            String option = args[options++];
+            switch (option) {
+                case "--vm": backend = Backend.VM; break;
+                case "--jit": backend = Backend.JIT; break;
+                case "--closures": backend = Backend.CLOSURES; break;
+                case "-O": optimizations = EnumSet.allOf(Optimization.class); break;
+                default:
+                    Optimization optimization = optimizationFlag(option);
+                    if (optimization == null) usage();
+                    optimizations.add(optimization);
+            }
+        }
+        if (!optimizations.isEmpty()) optimizationReport = System.err;
+
+        if (args.length - options > 1) {
+            usage();
+        } else if (args.length - options == 1) {
+            runFile(args[options]);
         } else {
             runPrompt();
         }
     }
 
+    private static Optimization optimizationFlag(String option) {
+        for (Optimization optimization : Optimization.values()) {
+            if (option.equals("--" + optimization.name)) return optimization;
+        }
+        return null;
+    }
+
+    private static void usage() {
+        StringBuilder passes = new StringBuilder();
+        for (Optimization optimization : Optimization.values()) passes.append(" | --").append(optimization.name);
+        System.out.println("Usage: jlox [--vm | --jit | --closures] [-O" + passes + "]... [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         run(new String(bytes, Charset.defaultCharset()));
@@ -67,13 +138,16 @@ public class Lox {
             }
         }
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        List<Stmt> program = optimize(statements);
+        new ConstantBindings().run(program);
+        // Each line shows up as soon as it is printed
+        execute(program, new Output(System.out, true));
     }
 
     private static List<Stmt> getReplStatements(String source) {
@@ -104,24 +178,74 @@ public class Lox {
             // Stop if there was a syntax error
             if (hadError) return;
 
-            Resolver resolver = new Resolver(interpreter);
+            Resolver resolver = new Resolver();
             resolver.resolve(statements);
 
             // Stop if there was a resolution error.
             if (hadError) return;
 
-            interpreter.interpret(statements, stdOut);
+            List<Stmt> program = optimize(statements);
+            new ConstantBindings().run(program);
+            execute(program, new Output(stdOut, false));
         } finally {
             Lox.stdErr = currentErr;
         }
     }
 
+    // The passes rewrite the tree, so the result is resolved again. The program was already checked, and a pass may
+    // remove every use of a variable, so the unused variables are not reported this time.
+    private static List<Stmt> optimize(List<Stmt> statements) {
+        if (optimizations.isEmpty()) return statements;
+
+        List<Stmt> optimized = new Optimizer(interpreter, optimizations, optimizationReport).optimize(statements);
+        new Resolver(false).resolve(optimized);
+        return optimized;
+    }
+
+    private static void execute(List<Stmt> statements, Output out) {
+        switch (backend) {
+            case INTERPRETER, JIT -> {
+                interpreter.setJitEnabled(backend == Backend.JIT);
+                interpreter.interpret(statements, out);
+            }
+            case CLOSURES -> {
+                interpreter.setJitEnabled(false);
+                interpreter.run(new ClosureCompiler(interpreter).compile(statements), out);
+            }
+            case VM -> {
+                FunctionProto script = new BytecodeCompiler().compile(statements);
+
+                // Stop if the program does not fit in the bytecode limits.
+                if (hadError) return;
+
+                vm.interpret(script, out);
+            }
+        }
+    }
+
     private static void run(String source) {
         run(source, System.out, System.err);
     }
 
+    public static void setBackend(Backend backend) {
+        Lox.backend = backend;
+    }
+
+    public static void setOptimizations(Set<Optimization> optimizations) {
+        Lox.optimizations = EnumSet.noneOf(Optimization.class);
+        Lox.optimizations.addAll(optimizations);
+    }
+
+    public static void setJitThreshold(int threshold) {
+        JitProfile.setThreshold(threshold);
+    }
+
     public static void reset() {
+        backend = Backend.INTERPRETER;
+        optimizations = EnumSet.noneOf(Optimization.class);
+        JitProfile.setThreshold(JitProfile.DEFAULT_THRESHOLD);
         interpreter = new Interpreter();
+        vm = new VM();
         hadError = false;
     }
 
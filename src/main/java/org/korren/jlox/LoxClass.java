@@ -8,6 +8,11 @@ class LoxClass extends LoxInstance implements LoxCallable {
     final String name;
     final LoxClass superclass;
     private final Map<String, LoxFunction> methods;
+    // Looked up once, as the flattened table never changes. Null when the class has no initializer.
+    final LoxFunction initializer;
+    private final int arity;
+    // The shape new instances of the class start with
+    final Shape instanceShape = new Shape();
 
     static private final LoxClass metaClassClass = new LoxClass();
 
@@ -15,7 +20,19 @@ class LoxClass extends LoxInstance implements LoxCallable {
         super(klass);
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        this.methods = flatten(superclass, methods);
+        this.initializer = this.methods.get("init");
+        this.arity = initializer == null ? 0 : initializer.arity();
+    }
+
+    // Merges the methods of the class into a copy of its superclass's table, which already holds everything it
+    // inherits, so a method is found in one lookup however deep the hierarchy is
+    private static Map<String, LoxFunction> flatten(LoxClass superclass, Map<String, LoxFunction> methods) {
+        if (superclass == null) return methods;
+
+        Map<String, LoxFunction> table = new HashMap<>(superclass.methods);
+        table.putAll(methods);
+        return table;
     }
 
     // For MetaClassClass
@@ -41,29 +58,31 @@ class LoxClass extends LoxInstance implements LoxCallable {
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.callMethod(interpreter, instance, arguments);
         }
         return instance;
     }
 
+    // The frame of a call to the class, the initializer's frame for a new instance. Without initializer there are no
+    // arguments to write, but the frame still gets them when the call has some, so the arity check can report them.
+    Environment frame(int argumentCount) {
+        if (initializer == null) return new Environment(null, argumentCount);
+        return initializer.frame(new LoxInstance(this));
+    }
+
+    Object call(Interpreter interpreter, Environment frame) {
+        if (initializer == null) return new LoxInstance(this);
+        // Initializers return their instance
+        return initializer.run(interpreter, frame);
+    }
+
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
-        if (initializer == null) return 0;
-        return initializer.arity();
+        return arity;
     }
 
     public LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
-
-        return null;
+        return methods.get(name);
     }
 }
@@ -8,9 +8,15 @@ class LoxFunction implements LoxCallable {
     private final List<Stmt> body;
     private final Environment closure;
     private final boolean isInitializer;
+    // Null when the JIT is disabled
+    private final JitProfile profile;
 
 
-    private LoxFunction(String name, List<Token> params, List<Stmt> body, Environment closure, boolean isInitializer) {
+    private LoxFunction(
+            String name, List<Token> params, List<Stmt> body, Environment closure, boolean isInitializer,
+            JitProfile profile
+    ) {
+        this.profile = profile;
         this.isInitializer = isInitializer;
         this.closure = closure;
         this.name = name;
@@ -19,37 +25,75 @@ class LoxFunction implements LoxCallable {
     }
 
     // For lambdas
-    LoxFunction(Expr.Lambda expr, Environment closure) {
-        this("lambda", expr.params, expr.body, closure, false);
+    LoxFunction(Expr.Lambda expr, Environment closure, JitProfile profile) {
+        this("lambda", expr.params, expr.body, closure, false, profile);
     }
 
     // For methods (some of which are initializers)
-    LoxFunction(Stmt.Function stmt, Environment environment, boolean isInitializer) {
-        this(stmt.name.lexeme, stmt.params, stmt.body, environment, isInitializer);
+    LoxFunction(Stmt.Function stmt, Environment environment, boolean isInitializer, JitProfile profile) {
+        this(stmt.name.lexeme, stmt.params, stmt.body, environment, isInitializer, profile);
     }
 
     // For "regular" functions
-    LoxFunction(Stmt.Function stmt, Environment environment) {
-        this(stmt, environment, false);
+    LoxFunction(Stmt.Function stmt, Environment environment, JitProfile profile) {
+        this(stmt, environment, false, profile);
+    }
+
+    // For the functions of the ClosureCompiler, which run their own code instead of the body
+    LoxFunction(String name, List<Token> params, boolean isInitializer) {
+        this(name, params, null, null, isInitializer, null);
+    }
+
+    // Every function made from a declaration shares its parameter list, even once the optimizer rewrote the body, so
+    // the list identifies the declaration
+    boolean isDeclaredWith(List<Token> params) {
+        return this.params == params;
     }
 
     @Override
     public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < params.size(); i++) {
-            environment.define(params.get(i).lexeme, arguments.get(i));
-        }
+        return run(interpreter, frame(closure, arguments));
+    }
+
+    // Calls the function as a method of the instance, without creating the bound method
+    Object callMethod(Interpreter interpreter, LoxInstance instance, List<Object> arguments) {
+        return run(interpreter, frame(thisEnvironment(instance), arguments));
+    }
 
-        try {
-            interpreter.executeBlock(body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
+    // The environment a call runs in. Callers write the arguments to it, in order, and then run the function in it,
+    // so the arguments are not collected anywhere else.
+    Environment frame() {
+        return new Environment(closure, params.size());
+    }
 
-            return returnValue.value;
+    // The frame of a call as a method of the instance
+    Environment frame(LoxInstance instance) {
+        return new Environment(thisEnvironment(instance), params.size());
+    }
+
+    private Environment frame(Environment closure, List<Object> arguments) {
+        Environment frame = new Environment(closure, params.size());
+        for (Object argument : arguments) {
+            frame.define(null, argument);
+        }
+        return frame;
+    }
+
+    Object run(Interpreter interpreter, Environment frame) {
+        CompiledFunction compiled = null;
+        if (profile != null) {
+            compiled = profile.compiledCode(interpreter, name, params, body);
         }
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        Object result = null;
+        if (compiled != null) {
+            result = compiled.call(interpreter, frame);
+        } else {
+            Completion completion = interpreter.executeBlock(body, frame);
+            if (completion != null) result = completion.value;
+        }
+        if (isInitializer) return frame.enclosing.getAt(0, 0);
+        return result;
     }
 
     @Override
@@ -63,8 +107,12 @@ class LoxFunction implements LoxCallable {
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
+        return new LoxFunction(name, params, body, thisEnvironment(instance), isInitializer, profile);
+    }
+
+    private Environment thisEnvironment(LoxInstance instance) {
+        Environment environment = new Environment(closure, 1);
         environment.define("this", instance);
-        return new LoxFunction(name, params, body, environment, isInitializer);
+        return environment;
     }
 }
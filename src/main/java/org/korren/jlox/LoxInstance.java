@@ -1,19 +1,24 @@
 package org.korren.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // The field values are stored in the slots the shape assigns to them
+    private Shape shape;
+    private Object[] fields = NO_FIELDS;
 
     LoxInstance(LoxClass klass) {
         if (klass == null && this instanceof LoxClass) {
             // Special case for the MetaClassClass
             this.klass = (LoxClass) this;
+            this.shape = new Shape();
             return;
         }
         this.klass = klass;
+        this.shape = klass.instanceShape;
     }
 
     @Override
@@ -21,18 +26,50 @@ class LoxInstance {
         return klass.name + " instance";
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    Object get(Token name, PropertyCache cache) {
+        int entry = cache.lookup(shape, klass, name.lexeme);
+        LoxFunction method;
+        if (entry >= 0) {
+            int slot = cache.slot(entry);
+            if (slot >= 0) return fields[slot];
+            method = cache.method(entry);
+        } else {
+            int slot = shape.slot(name.lexeme);
+            if (slot >= 0) return fields[slot];
+            method = klass.findMethod(name.lexeme);
         }
 
-        LoxFunction method = klass.findMethod(name.lexeme);
         if (method != null) return method.bind(this);
 
         throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
     }
 
+    // The method the property resolves to, or null if it is a field or undefined. Calls use it to run the method on
+    // this instance directly, without creating a bound method.
+    LoxFunction getMethod(Token name, PropertyCache cache) {
+        int entry = cache.lookup(shape, klass, name.lexeme);
+        if (entry >= 0) {
+            return cache.slot(entry) >= 0 ? null : cache.method(entry);
+        }
+
+        if (shape.slot(name.lexeme) >= 0) return null;
+        return klass.findMethod(name.lexeme);
+    }
+
+    // Whether the function is the method the class has for the name
+    boolean isMethod(Token name, Object function) {
+        return function != null && klass.findMethod(name.lexeme) == function;
+    }
+
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slot(name.lexeme);
+        if (slot < 0) {
+            shape = shape.withField(name.lexeme);
+            slot = shape.size() - 1;
+            if (slot == fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(4, slot * 2));
+            }
+        }
+        fields[slot] = value;
     }
 }
@@ -0,0 +1,11 @@
+package org.korren.jlox;
+
+// Thrown by the numeric evaluation of the ClosureCompiler when the value turns out not to be a number
+class NotANumber extends RuntimeException {
+    final Object value;
+
+    NotANumber(Object value) {
+        super(null, null, false, false);
+        this.value = value;
+    }
+}
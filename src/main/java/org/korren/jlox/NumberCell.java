@@ -0,0 +1,12 @@
+package org.korren.jlox;
+
+// A number stored unboxed in a slot, by the counters of counted loops in an Environment and by the numeric
+// evaluation of the ClosureCompiler in the ValueStack. Later numeric stores update the cell in place, and reading
+// the slot boxes the number, so cells never escape.
+final class NumberCell {
+    double value;
+
+    NumberCell(double value) {
+        this.value = value;
+    }
+}
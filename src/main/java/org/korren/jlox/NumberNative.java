@@ -0,0 +1,24 @@
+package org.korren.jlox;
+
+import java.util.List;
+
+// A native function of no arguments producing a number. The numeric paths of the ClosureCompiler get the number
+// from callNumber, without it being boxed.
+abstract class NumberNative implements LoxCallable {
+    abstract double callNumber();
+
+    @Override
+    public Object call(Interpreter interpreter, List<Object> arguments) {
+        return callNumber();
+    }
+
+    @Override
+    public int arity() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
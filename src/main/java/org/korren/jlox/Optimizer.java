@@ -0,0 +1,73 @@
+package org.korren.jlox;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Set;
+
+// Runs the enabled optimization passes over a resolved program, in the order they are declared in, and reports how
+// many nodes each of them removed or added.
+class Optimizer {
+    private final Interpreter interpreter;
+    private final Set<Lox.Optimization> passes;
+    // Where the removed node counts go, null not to report them
+    private final PrintStream report;
+
+    Optimizer(Interpreter interpreter, Set<Lox.Optimization> passes, PrintStream report) {
+        this.interpreter = interpreter;
+        this.passes = passes;
+        this.report = report;
+    }
+
+    List<Stmt> optimize(List<Stmt> program) {
+        for (Lox.Optimization optimization : Lox.Optimization.values()) {
+            if (!passes.contains(optimization)) continue;
+
+            int before = count(program);
+            program = pass(optimization).run(program);
+            if (report != null) {
+                // Inlining copies code, it usually adds nodes
+                int removed = before - count(program);
+                report.println(optimization.name + ": "
+                        + (removed >= 0 ? "removed " + removed : "added " + -removed) + " nodes");
+            }
+        }
+        return program;
+    }
+
+    private AstRewriter pass(Lox.Optimization optimization) {
+        switch (optimization) {
+            case INLINING: return new Inliner();
+            case CONSTANT_PROPAGATION: return new ConstantPropagation();
+            case CONSTANT_FOLDING: return new ConstantFolding(interpreter);
+            case DEAD_BRANCHES: return new DeadBranchElimination();
+            case UNREACHABLE_CODE: return new UnreachableCode();
+            case COUNTED_LOOPS: return new CountedLoops();
+        }
+
+        // Unreachable
+        return null;
+    }
+
+    private static int count(List<Stmt> program) {
+        NodeCounter counter = new NodeCounter();
+        counter.run(program);
+        return counter.count;
+    }
+
+    // Visits the whole tree without changing it, every node goes through one of the rewrite methods
+    private static class NodeCounter extends AstRewriter {
+        int count = 0;
+
+        @Override
+        Stmt rewrite(Stmt stmt) {
+            count++;
+            return super.rewrite(stmt);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            count++;
+            return super.rewrite(expr);
+        }
+    }
+}
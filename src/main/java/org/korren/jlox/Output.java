@@ -0,0 +1,63 @@
+package org.korren.jlox;
+
+import java.io.PrintStream;
+
+// Where the print statements of a run write. The lines collect in a buffer, which goes to the stream when it is full
+// and when the run ends, instead of a synchronized println, which may flush, for every line. The REPL writes every
+// line as soon as it is printed.
+public final class Output {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final PrintStream stream;
+    private final boolean flushEachLine;
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+
+    public Output(PrintStream stream, boolean flushEachLine) {
+        this.stream = stream;
+        this.flushEachLine = flushEachLine;
+    }
+
+    public void printLine(String text) {
+        buffer.append(text).append('\n');
+        endLine();
+    }
+
+    // Integral numbers go into the buffer digit by digit, without making a string first
+    public void printLine(double number) {
+        if (isInteger(number)) {
+            buffer.append((long)number).append('\n');
+            endLine();
+        } else {
+            printLine(format(number));
+        }
+    }
+
+    private void endLine() {
+        if (flushEachLine || buffer.length() >= BUFFER_SIZE) flush();
+    }
+
+    public void flush() {
+        if (buffer.length() > 0) {
+            stream.append(buffer);
+            buffer.setLength(0);
+        }
+        stream.flush();
+    }
+
+    // Numbers print as Java prints doubles, without the ".0" of integral numbers
+    public static String format(double number) {
+        if (isInteger(number)) return Long.toString((long)number);
+
+        // Java prints the integral numbers from 10^7 on in scientific notation, and -0 as "-0.0"
+        String text = Double.toString(number);
+        if (text.endsWith(".0")) {
+            text = text.substring(0, text.length() - 2);
+        }
+        return text;
+    }
+
+    // The integral numbers Java would print with a ".0" fraction
+    private static boolean isInteger(double number) {
+        return number == (long)number && Math.abs(number) < 1e7 && (number != 0 || 1 / number > 0);
+    }
+}
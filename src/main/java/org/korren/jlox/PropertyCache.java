@@ -0,0 +1,47 @@
+package org.korren.jlox;
+
+// An inline cache for one property access in the program. For each instance Shape seen there, it remembers whether
+// the property is a field and in which slot, or otherwise which method the class resolves the name to, so neither
+// the field nor the method has to be looked up again. Shapes and class methods never change once created, so the
+// entries stay valid for good. An access that sees more than ENTRIES different shapes is megamorphic, and goes back
+// to looking the property up every time.
+class PropertyCache {
+    static final int ENTRIES = 4;
+
+    private final Shape[] shapes = new Shape[ENTRIES];
+    private final int[] slots = new int[ENTRIES];
+    private final LoxFunction[] methods = new LoxFunction[ENTRIES];
+    private int size = 0;
+    private boolean megamorphic = false;
+
+    // Returns the entry for the shape, or -1 if the access is megamorphic
+    int lookup(Shape shape, LoxClass klass, String name) {
+        if (megamorphic) return -1;
+
+        for (int i = 0; i < size; i++) {
+            if (shapes[i] == shape) return i;
+        }
+
+        if (size == ENTRIES) {
+            megamorphic = true;
+            return -1;
+        }
+
+        shapes[size] = shape;
+        slots[size] = shape.slot(name);
+        if (slots[size] < 0) {
+            methods[size] = klass.findMethod(name);
+        }
+        return size++;
+    }
+
+    // The field slot of the entry, or -1 if the property is not a field
+    int slot(int entry) {
+        return slots[entry];
+    }
+
+    // The method of the entry, null if the class has no such method
+    LoxFunction method(int entry) {
+        return methods[entry];
+    }
+}
@@ -4,12 +4,19 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.function.Consumer;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
+    // Off when resolving a program the optimizer rewrote
+    private final boolean reportUnused;
     private final Stack<Map<String, VarInfo>> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // The first scope of the function being resolved, variables from the scopes before it are captured
+    private int functionScope = 0;
     private boolean inLoop = false;
+    // The lambdas being resolved and their first scopes, to find the ones using variables from outside them
+    private final Stack<Expr.Lambda> lambdas = new Stack<>();
+    private final Stack<Integer> lambdaScopes = new Stack<>();
     private ClassType currentClass = ClassType.NONE;
 
     private enum FunctionType {
@@ -31,28 +38,39 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         Token nameTok;
         String varType;
         boolean wasUsed = false;
+        // Index of the variable in its Environment, variables get slots in declaration order
+        final int slot;
+        // Marks the declaration as captured by a nested function, null for "this" and "super", which never change
+        // and so are not captured as variables
+        final Runnable capture;
 
-        VarInfo(Token nameTok, String varType) {
+        VarInfo(Token nameTok, String varType, int slot, Runnable capture) {
             this.nameTok = nameTok;
             this.varType = varType;
+            this.slot = slot;
+            this.capture = capture;
         }
 
-        VarInfo(Token nameTok, String varType, boolean defined, boolean wasUsed) {
-            this(nameTok, varType);
+        VarInfo(Token nameTok, String varType, int slot, boolean defined, boolean wasUsed) {
+            this(nameTok, varType, slot, null);
             this.defined = defined;
             this.wasUsed = wasUsed;
         }
     }
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+    Resolver() {
+        this(true);
+    }
+
+    Resolver(boolean reportUnused) {
+        this.reportUnused = reportUnused;
     }
 
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr.name, (local) -> expr.local = local);
         return null;
     }
 
@@ -74,6 +92,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitInlineExpr(Expr.Inline expr) {
+        resolve(expr.call);
+        resolve(expr.body);
+        return null;
+    }
+
     @Override
     public Void visitGetExpr(Expr.Get expr) {
         resolve(expr.object);
@@ -119,7 +144,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword, (local) -> expr.local = local);
         return null;
     }
 
@@ -137,7 +162,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
         }
 
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword, (local) -> expr.local = local);
         return null;
     }
 
@@ -149,9 +174,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (scopes.isEmpty()) return null;
-
-        VarInfo vi = resolveLocal(expr, expr.name);
+        VarInfo vi = resolveLocal(expr.name, (local) -> expr.local = local);
         if (vi == null) return null;
 
         if (vi.defined == Boolean.FALSE) {
@@ -182,7 +205,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         try {
             currentClass = ClassType.CLASS;
 
-            declare(stmt.name, "class");
+            stmt.captured = false;
+            declare(stmt.name, "class", () -> stmt.captured = true);
             define(stmt.name);
 
             if (stmt.superclass != null) {
@@ -193,11 +217,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                 resolve(stmt.superclass);
 
                 beginScope();
-                scopes.peek().put("super", new VarInfo(stmt.name, "super", true, true));
+                scopes.peek().put("super", new VarInfo(stmt.name, "super", 0, true, true));
             }
 
             beginScope();
-            scopes.peek().put("this", new VarInfo(stmt.name, "this", true, true));
+            scopes.peek().put("this", new VarInfo(stmt.name, "this", 0, true, true));
 
             for (Stmt.Function method : stmt.methods) {
                 FunctionType declaration = FunctionType.METHOD;
@@ -240,7 +264,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name, "function");
+        stmt.captured = false;
+        declare(stmt.name, "function", () -> stmt.captured = true);
         define(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
@@ -279,7 +304,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name, "variable");
+        stmt.captured = false;
+        declare(stmt.name, "variable", () -> stmt.captured = true);
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
@@ -300,37 +326,63 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private VarInfo resolveLocal(Expr expr, Token name) {
+    // Gives the node where the variable lives, or null for a global. Nodes are resolved again after the optimizer
+    // rewrote the program, so globals are set too.
+    private VarInfo resolveLocal(Token name, Consumer<Interpreter.Local> node) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return scopes.get(i).get(name.lexeme);
+            VarInfo vi = scopes.get(i).get(name.lexeme);
+            if (vi != null) {
+                node.accept(new Interpreter.Local(scopes.size() - 1 - i, vi.slot));
+                if (i < functionScope && vi.capture != null) vi.capture.run();
+                for (int k = lambdas.size() - 1; k >= 0 && lambdaScopes.get(k) > i; k--) {
+                    lambdas.get(k).captures = true;
+                }
+                return vi;
             }
         }
+        node.accept(null);
         return null;
     }
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
-        resolveFunction(function.params, function.body, type);
+        function.capturedParams = new boolean[function.params.size()];
+        resolveFunction(function.params, function.capturedParams, function.body, type);
     }
 
     private void resolveLambda(Expr.Lambda expr) {
-        resolveFunction(expr.params, expr.body, FunctionType.LAMBDA);
+        expr.capturedParams = new boolean[expr.params.size()];
+        expr.captures = false;
+        lambdas.push(expr);
+        lambdaScopes.push(scopes.size());
+        try {
+            resolveFunction(expr.params, expr.capturedParams, expr.body, FunctionType.LAMBDA);
+        } finally {
+            lambdas.pop();
+            lambdaScopes.pop();
+        }
     }
 
-    private void resolveFunction(List<Token> params, List<Stmt> body, FunctionType type) {
+    private void resolveFunction(List<Token> params, boolean[] capturedParams, List<Stmt> body, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        // A loop around the declaration does not let the function body break out of it
+        boolean enclosingInLoop = inLoop;
+        int enclosingFunctionScope = functionScope;
         try {
             currentFunction = type;
+            inLoop = false;
+            functionScope = scopes.size();
             beginScope();
-            for (Token param : params) {
-                declare(param, "parameter");
-                define(param);
+            for (int i = 0; i < params.size(); i++) {
+                int index = i;
+                declare(params.get(i), "parameter", () -> capturedParams[index] = true);
+                define(params.get(i));
             }
             resolve(body);
             endScope();
         } finally {
             currentFunction = enclosingFunction;
+            inLoop = enclosingInLoop;
+            functionScope = enclosingFunctionScope;
         }
     }
 
@@ -348,14 +400,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
-    private void declare(Token name, String varType) {
+    private void declare(Token name, String varType, Runnable capture) {
         if (scopes.isEmpty()) return;
 
         Map<String, VarInfo> scope = scopes.peek();
         if (scope.containsKey(name.lexeme)) {
             Lox.error(name, "Already have a " + scope.get(name.lexeme).varType + " with this name in this scope.");
         }
-        scope.put(name.lexeme, new VarInfo(name, varType));
+        scope.put(name.lexeme, new VarInfo(name, varType, scope.size(), capture));
     }
 
     private void define(Token name) {
@@ -366,7 +418,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private void endScope() {
         Map<String, VarInfo> scope = scopes.pop();
         scope.forEach((n, vi) -> {
-            if(!vi.wasUsed) {
+            if(!vi.wasUsed && reportUnused) {
                 Lox.error(vi.nameTok, vi.varType + " was defined but never used.");
             }
         });
@@ -0,0 +1,82 @@
+package org.korren.jlox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// A string made by a concatenation, which keeps its two parts instead of copying them, so building a string by
+// appending to it in a loop takes linear time instead of quadratic. It is flattened into a String the first time
+// its characters are needed, when it is printed, compared or hashed, and keeps that String from then on. String
+// values are either a String or a Rope, so the code handling strings checks for a CharSequence.
+final class Rope implements CharSequence {
+    // Shorter concatenations are cheaper to copy right away
+    private static final int MIN_LENGTH = 64;
+
+    private final int length;
+    // The parts, until the rope is flattened
+    private CharSequence left;
+    private CharSequence right;
+    private String flat = null;
+
+    private Rope(CharSequence left, CharSequence right) {
+        this.length = left.length() + right.length();
+        this.left = left;
+        this.right = right;
+    }
+
+    static CharSequence concat(CharSequence left, CharSequence right) {
+        if (left.length() == 0) return right;
+        if (right.length() == 0) return left;
+        if (left.length() + right.length() < MIN_LENGTH) return left.toString() + right;
+        return new Rope(left, right);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    // Walks the parts with a stack of its own, a string appended to many times is a rope as deep as the number of
+    // appends
+    @Override
+    public String toString() {
+        if (flat != null) return flat;
+
+        StringBuilder builder = new StringBuilder(length);
+        Deque<CharSequence> pending = new ArrayDeque<>();
+        pending.push(this);
+        while (!pending.isEmpty()) {
+            CharSequence part = pending.pop();
+            if (part instanceof Rope && ((Rope)part).flat == null) {
+                pending.push(((Rope)part).right);
+                pending.push(((Rope)part).left);
+            } else {
+                builder.append(part);
+            }
+        }
+
+        flat = builder.toString();
+        left = null;
+        right = null;
+        return flat;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        return object instanceof Rope && toString().equals(object.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+}
@@ -3,8 +3,9 @@ package org.korren.jlox;
 public class RuntimeError extends RuntimeException {
     final Token token;
 
+    // Errors are reported by their message and line, so filling in the Java stack trace would be wasted work
     public RuntimeError(Token token, String message) {
-        super(message);
+        super(message, null, false, false);
         this.token = token;
     }
 }
@@ -0,0 +1,36 @@
+package org.korren.jlox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The layout of the fields of an instance: which slot of the instance holds each field. Instances that got the same
+// fields in the same order share their Shape, since every class starts its instances at its own empty shape and
+// adding a field moves an instance along a transition that is created once and then reused. Since a shape only ever
+// belongs to instances of one class, an inline cache keyed on the shape knows both the field slots and the methods.
+class Shape {
+    private final Map<String, Integer> slots;
+    private final Map<String, Shape> transitions = new HashMap<>();
+
+    Shape() {
+        slots = new HashMap<>();
+    }
+
+    private Shape(Shape parent, String field) {
+        slots = new HashMap<>(parent.slots);
+        slots.put(field, parent.size());
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // Returns -1 if instances of this shape have no such field
+    int slot(String field) {
+        Integer slot = slots.get(field);
+        return slot == null ? -1 : slot;
+    }
+
+    Shape withField(String field) {
+        return transitions.computeIfAbsent(field, (f) -> new Shape(this, f));
+    }
+}
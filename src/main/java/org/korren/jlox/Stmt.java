@@ -57,6 +57,7 @@ abstract class Stmt {
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
     final List<Stmt.Function> classMethods;
+    boolean captured;
   }
   static class Continue extends Stmt {
     Continue(Token keyword) {
@@ -97,6 +98,9 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+    boolean captured;
+    boolean[] capturedParams;
+    JitProfile profile;
   }
   static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -153,6 +157,7 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+    boolean captured;
   }
   static class While extends Stmt {
     While(Expr condition, Stmt body) {
@@ -167,6 +172,7 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+    CountedLoop counted;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,21 @@
+package org.korren.jlox;
+
+// The method one super expression in the program resolves to. The superclass of a class never changes once its
+// class statement ran, and neither do its methods, so the method is looked up once. A class statement run again,
+// in a function, may give the same methods another superclass, and the cache then follows the latest one.
+class SuperCache {
+    private LoxClass superclass = null;
+    private LoxFunction method = null;
+
+    LoxFunction lookup(LoxClass superclass, Token name) {
+        if (superclass != this.superclass) {
+            LoxFunction method = superclass.findMethod(name.lexeme);
+            if (method == null) {
+                throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+            }
+            this.superclass = superclass;
+            this.method = method;
+        }
+        return method;
+    }
+}
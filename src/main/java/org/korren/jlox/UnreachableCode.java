@@ -0,0 +1,31 @@
+package org.korren.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Removes the statements that follow a return, break or continue in the same block, and those after an if whose
+// branches all end that way.
+class UnreachableCode extends AstRewriter {
+    @Override
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = super.rewrite(statements);
+        for (int i = 0; i < rewritten.size() - 1; i++) {
+            if (terminates(rewritten.get(i))) return new ArrayList<>(rewritten.subList(0, i + 1));
+        }
+        return rewritten;
+    }
+
+    // Blocks are already cut after their first terminating statement, so only their last one has to be checked
+    private static boolean terminates(Stmt stmt) {
+        if (stmt instanceof Stmt.Return || stmt instanceof Stmt.Break || stmt instanceof Stmt.Continue) return true;
+        if (stmt instanceof Stmt.Block) {
+            List<Stmt> statements = ((Stmt.Block)stmt).statements;
+            return !statements.isEmpty() && terminates(statements.get(statements.size() - 1));
+        }
+        if (stmt instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)stmt;
+            return ifStmt.elseBranch != null && terminates(ifStmt.thenBranch) && terminates(ifStmt.elseBranch);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,68 @@
+package org.korren.jlox;
+
+import java.util.Arrays;
+
+// The locals of the code built by the ClosureCompiler, which does not use Environments. Each call gets a window of
+// one contiguous array, starting at base, with the parameters first and then a slot for each local in scope. The
+// locals that a nested function captures hold a Cell, which the function shares once it is created, the others are
+// only ever in the array and are gone when the call returns.
+final class ValueStack {
+    static final class Cell {
+        Object value;
+
+        Cell(Object value) {
+            this.value = value;
+        }
+    }
+
+    Object[] values = new Object[256];
+    // Where the frame of the running function starts
+    int base = 0;
+    // The first slot past the frame of the running function, calls write their arguments from there
+    int top = 0;
+    // The running function, null for the top level code, and its this
+    ClosureCompiler.StackFunction function = null;
+    Object receiver = null;
+
+    void push(Object value) {
+        if (top == values.length) values = Arrays.copyOf(values, top * 2);
+        values[top++] = value;
+    }
+
+    // Makes room for a frame of the given size from the base
+    void reserve(int size) {
+        top = base + size;
+        if (top > values.length) values = Arrays.copyOf(values, Math.max(top, values.length * 2));
+    }
+
+    Object get(int slot) {
+        Object value = values[base + slot];
+        if (value instanceof NumberCell) return ((NumberCell)value).value;
+        return value;
+    }
+
+    double getNumber(int slot) {
+        Object value = values[base + slot];
+        if (value instanceof NumberCell) return ((NumberCell)value).value;
+        if (value instanceof Double) return (double)value;
+        throw new NotANumber(value);
+    }
+
+    void set(int slot, Object value) {
+        values[base + slot] = value;
+    }
+
+    // A NumberCell left in a slot by a variable that is gone is reused by the next one
+    void setNumber(int slot, double value) {
+        Object current = values[base + slot];
+        if (current instanceof NumberCell) {
+            ((NumberCell)current).value = value;
+        } else {
+            values[base + slot] = new NumberCell(value);
+        }
+    }
+
+    Cell cell(int slot) {
+        return (Cell)values[base + slot];
+    }
+}
@@ -0,0 +1,94 @@
+package org.korren.jlox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes a class file for a single class. Just enough of the format is supported to be able to generate code for
+// simple classes, names are JVM internal names ("java/lang/Object") and descriptors.
+public final class ClassFile {
+    public static final int ACC_PUBLIC = 0x0001;
+    public static final int ACC_PRIVATE = 0x0002;
+    public static final int ACC_STATIC = 0x0008;
+    public static final int ACC_FINAL = 0x0010;
+    public static final int ACC_SUPER = 0x0020;
+
+    // Class files before version 50 are verified by type inference, so we don't need to compute stack map frames
+    private static final int VERSION = 49;
+
+    private record Field(int access, int name, int descriptor) {}
+    private record Method(int access, int name, int descriptor, Code code) {}
+
+    private final ConstantPool pool = new ConstantPool();
+    private final int access;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+    private final List<Field> fields = new ArrayList<>();
+    private final List<Method> methods = new ArrayList<>();
+
+    public ClassFile(int access, String name, String superName, String... interfaceNames) {
+        this.access = access | ACC_SUPER;
+        thisClass = pool.classRef(name);
+        superClass = pool.classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaces[i] = pool.classRef(interfaceNames[i]);
+        }
+    }
+
+    public void addField(int access, String name, String descriptor) {
+        fields.add(new Field(access, pool.utf8(name), pool.utf8(descriptor)));
+    }
+
+    // Returns the builder for the body of the new method, the parameters (and "this") occupy the first locals
+    public Code addMethod(int access, String name, String descriptor) {
+        int parameterSlots = Code.argumentSlots(descriptor) + ((access & ACC_STATIC) == 0 ? 1 : 0);
+        Code code = new Code(pool, parameterSlots);
+        methods.add(new Method(access, pool.utf8(name), pool.utf8(descriptor), code));
+        return code;
+    }
+
+    public byte[] toByteArray() {
+        int codeAttribute = pool.utf8("Code");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            pool.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int index : interfaces) {
+                out.writeShort(index);
+            }
+
+            out.writeShort(fields.size());
+            for (Field field : fields) {
+                out.writeShort(field.access());
+                out.writeShort(field.name());
+                out.writeShort(field.descriptor());
+                out.writeShort(0);
+            }
+
+            out.writeShort(methods.size());
+            for (Method method : methods) {
+                out.writeShort(method.access());
+                out.writeShort(method.name());
+                out.writeShort(method.descriptor());
+                out.writeShort(1);
+                method.code().writeTo(out, codeAttribute);
+            }
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package org.korren.jlox.jit;
+
+// Thrown when the generated code does not fit the limits of the class file format
+public class ClassFileLimitException extends RuntimeException {
+    ClassFileLimitException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,317 @@
+package org.korren.jlox.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Builds the body of a method. Every instruction updates the tracked operand stack depth, so the max_stack and
+// max_locals values of the Code attribute are computed as the code is written.
+public final class Code {
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ALOAD = 0x19;
+    private static final int AALOAD = 0x32;
+    private static final int ISTORE = 0x36;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int DUP_X1 = 0x5a;
+    private static final int SWAP = 0x5f;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int IRETURN = 0xac;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int NEW = 0xbb;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+
+    private final ConstantPool pool;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private int stack = 0;
+    private int maxStack = 0;
+    private int locals;
+    private int maxLocals;
+    private final List<Label> labels = new ArrayList<>();
+
+    Code(ConstantPool pool, int parameterSlots) {
+        this.pool = pool;
+        this.locals = parameterSlots;
+        this.maxLocals = parameterSlots;
+    }
+
+    // Allocates a fresh local variable slot for a reference or int value
+    public int newLocal() {
+        int local = locals++;
+        maxLocals = Math.max(maxLocals, locals);
+        return local;
+    }
+
+    public Label newLabel() {
+        Label label = new Label();
+        labels.add(label);
+        return label;
+    }
+
+    public void mark(Label label) {
+        label.offset = code.size();
+        // The code before a jump target might have ended with an unconditional jump, the depth at the target is
+        // the one of the branches jumping to it
+        if (label.stackDepth >= 0) {
+            stack = label.stackDepth;
+        }
+    }
+
+    public void aconstNull() {
+        op(ACONST_NULL, 1);
+    }
+
+    public void iconst(int value) {
+        if (value >= -1 && value <= 5) {
+            op(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            op(BIPUSH, 1);
+            code.write(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            op(SIPUSH, 1);
+            writeShort(value);
+        } else {
+            op(LDC_W, 1);
+            writeShort(pool.integer(value));
+        }
+    }
+
+    public void ldc(String value) {
+        op(LDC_W, 1);
+        writeShort(pool.string(value));
+    }
+
+    public void aload(int local) {
+        localOp(ALOAD, local, 1);
+    }
+
+    public void astore(int local) {
+        localOp(ASTORE, local, -1);
+    }
+
+    public void iload(int local) {
+        localOp(ILOAD, local, 1);
+    }
+
+    public void istore(int local) {
+        localOp(ISTORE, local, -1);
+    }
+
+    public void aaload() {
+        op(AALOAD, -1);
+    }
+
+    public void aastore() {
+        op(AASTORE, -3);
+    }
+
+    public void pop() {
+        op(POP, -1);
+    }
+
+    public void dup() {
+        op(DUP, 1);
+    }
+
+    // Duplicate the top value and insert it below the second one
+    public void dupX1() {
+        op(DUP_X1, 1);
+    }
+
+    public void swap() {
+        op(SWAP, 0);
+    }
+
+    public void ifeq(Label label) {
+        jump(IFEQ, label, -1);
+    }
+
+    public void ifne(Label label) {
+        jump(IFNE, label, -1);
+    }
+
+    public void goTo(Label label) {
+        jump(GOTO, label, 0);
+    }
+
+    public void ireturn() {
+        op(IRETURN, -1);
+    }
+
+    public void areturn() {
+        op(ARETURN, -1);
+    }
+
+    public void vreturn() {
+        op(RETURN, 0);
+    }
+
+    public void getstatic(String owner, String name, String descriptor) {
+        op(GETSTATIC, 1);
+        writeShort(pool.fieldRef(owner, name, descriptor));
+    }
+
+    public void getfield(String owner, String name, String descriptor) {
+        op(GETFIELD, 0);
+        writeShort(pool.fieldRef(owner, name, descriptor));
+    }
+
+    public void putfield(String owner, String name, String descriptor) {
+        op(PUTFIELD, -2);
+        writeShort(pool.fieldRef(owner, name, descriptor));
+    }
+
+    public void invokestatic(String owner, String name, String descriptor) {
+        op(INVOKESTATIC, returnSlots(descriptor) - argumentSlots(descriptor));
+        writeShort(pool.methodRef(owner, name, descriptor));
+    }
+
+    public void invokevirtual(String owner, String name, String descriptor) {
+        op(INVOKEVIRTUAL, returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+        writeShort(pool.methodRef(owner, name, descriptor));
+    }
+
+    public void invokespecial(String owner, String name, String descriptor) {
+        op(INVOKESPECIAL, returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+        writeShort(pool.methodRef(owner, name, descriptor));
+    }
+
+    public void invokeinterface(String owner, String name, String descriptor) {
+        int arguments = argumentSlots(descriptor);
+        op(INVOKEINTERFACE, returnSlots(descriptor) - arguments - 1);
+        writeShort(pool.interfaceMethodRef(owner, name, descriptor));
+        code.write(arguments + 1);
+        code.write(0);
+    }
+
+    public void anew(String type) {
+        op(NEW, 1);
+        writeShort(pool.classRef(type));
+    }
+
+    public void anewarray(String componentType) {
+        op(ANEWARRAY, 0);
+        writeShort(pool.classRef(componentType));
+    }
+
+    public void checkcast(String type) {
+        op(CHECKCAST, 0);
+        writeShort(pool.classRef(type));
+    }
+
+    private void op(int opcode, int stackChange) {
+        code.write(opcode);
+        stack += stackChange;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void localOp(int opcode, int local, int stackChange) {
+        if (local > 0xff) {
+            throw new ClassFileLimitException("Too many local variables");
+        }
+        op(opcode, stackChange);
+        code.write(local);
+    }
+
+    private void jump(int opcode, Label label, int stackChange) {
+        int offset = code.size();
+        op(opcode, stackChange);
+        if (label.offset >= 0) {
+            writeBranchOffset(label.offset - offset);
+        } else {
+            label.fixups.add(offset);
+            label.stackDepth = stack;
+            writeShort(0);
+        }
+    }
+
+    private void writeBranchOffset(int offset) {
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+            throw new ClassFileLimitException("Method too large");
+        }
+        writeShort(offset);
+    }
+
+    private void writeShort(int value) {
+        code.write((value >> 8) & 0xff);
+        code.write(value & 0xff);
+    }
+
+    void writeTo(DataOutputStream out, int codeAttribute) throws IOException {
+        byte[] bytes = code.toByteArray();
+        if (bytes.length > 0xffff) {
+            throw new ClassFileLimitException("Method too large");
+        }
+        // Now that all the labels are placed, fill in the forward branches
+        for (Label label : labels) {
+            for (int fixup : label.fixups) {
+                int offset = label.offset - fixup;
+                if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                    throw new ClassFileLimitException("Method too large");
+                }
+                bytes[fixup + 1] = (byte)(offset >> 8);
+                bytes[fixup + 2] = (byte)offset;
+            }
+        }
+
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + bytes.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                slots += 2;
+                i++;
+            } else {
+                slots++;
+                i = skipType(descriptor, i);
+            }
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') return 0;
+        if (c == 'J' || c == 'D') return 2;
+        return 1;
+    }
+
+    private static int skipType(String descriptor, int i) {
+        while (descriptor.charAt(i) == '[') i++;
+        if (descriptor.charAt(i) == 'L') {
+            return descriptor.indexOf(';', i) + 1;
+        }
+        return i + 1;
+    }
+}
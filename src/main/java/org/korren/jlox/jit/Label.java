@@ -0,0 +1,14 @@
+package org.korren.jlox.jit;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public final class Label {
+    int offset = -1;
+    // Offsets of the branch instructions waiting for this label to be placed
+    final List<Integer> fixups = new ArrayList<>();
+    // Operand stack depth at the branches to this label, -1 until the first forward branch is written
+    int stackDepth = -1;
+
+    Label() {}
+}
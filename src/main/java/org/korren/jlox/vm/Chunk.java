@@ -0,0 +1,46 @@
+package org.korren.jlox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A compiled function body: the code, the source line of every code byte and the constant pool
+public final class Chunk {
+    byte[] code = new byte[32];
+    int[] lines = new int[32];
+    int count = 0;
+    Object[] constants = new Object[8];
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    public void write(int b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = (byte)b;
+        lines[count] = line;
+        count++;
+    }
+
+    public int count() {
+        return count;
+    }
+
+    public void patch(int offset, int b) {
+        code[offset] = (byte)b;
+    }
+
+    // Returns the index of the value in the constant pool, equal values share an entry
+    public int addConstant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) return index;
+
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,16 @@
+package org.korren.jlox.vm;
+
+final class Closure {
+    final FunctionProto function;
+    final Upvalue[] upvalues;
+
+    Closure(FunctionProto function) {
+        this.function = function;
+        this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
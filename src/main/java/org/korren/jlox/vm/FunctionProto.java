@@ -0,0 +1,34 @@
+package org.korren.jlox.vm;
+
+// The compiled form of a function declaration or lambda, shared by all the closures created from it
+public final class FunctionProto {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    // For a lambda that captures nothing, the one closure every evaluation of it gives
+    boolean hoisted = false;
+    Closure shared = null;
+
+    public FunctionProto(String name, int arity) {
+        this.name = name;
+        this.arity = arity;
+    }
+
+    public Chunk chunk() {
+        return chunk;
+    }
+
+    public void setUpvalueCount(int upvalueCount) {
+        this.upvalueCount = upvalueCount;
+    }
+
+    public void hoist() {
+        this.hoisted = true;
+    }
+
+    @Override
+    public String toString() {
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,20 @@
+package org.korren.jlox.vm;
+
+final class NativeFunction {
+    interface Body {
+        Object call(Object[] arguments);
+    }
+
+    final int arity;
+    final Body body;
+
+    NativeFunction(int arity, Body body) {
+        this.arity = arity;
+        this.body = body;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
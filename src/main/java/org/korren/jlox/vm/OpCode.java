@@ -0,0 +1,49 @@
+package org.korren.jlox.vm;
+
+// The instruction set of the VM. Operands are written right after the op code, the comments list them, u16
+// operands are stored high byte first.
+public final class OpCode {
+    private OpCode() {}
+
+    public static final byte CONSTANT = 0;              // u16 constant
+    public static final byte NIL = 1;
+    public static final byte TRUE = 2;
+    public static final byte FALSE = 3;
+    public static final byte UNASSIGNED = 4;            // Value of a variable declared without an initializer
+    public static final byte POP = 5;
+    public static final byte GET_LOCAL = 6;             // u8 slot
+    public static final byte SET_LOCAL = 7;             // u8 slot
+    public static final byte GET_GLOBAL = 8;            // u16 name constant
+    public static final byte DEFINE_GLOBAL = 9;         // u16 name constant
+    public static final byte SET_GLOBAL = 10;           // u16 name constant
+    public static final byte GET_UPVALUE = 11;          // u8 upvalue index
+    public static final byte SET_UPVALUE = 12;          // u8 upvalue index
+    public static final byte GET_PROPERTY = 13;         // u16 name constant
+    public static final byte SET_PROPERTY = 14;         // u16 name constant
+    public static final byte GET_SUPER = 15;            // u16 name constant
+    public static final byte EQUAL = 16;
+    public static final byte GREATER = 17;
+    public static final byte GREATER_EQUAL = 18;
+    public static final byte LESS = 19;
+    public static final byte LESS_EQUAL = 20;
+    public static final byte ADD = 21;
+    public static final byte SUBTRACT = 22;
+    public static final byte MULTIPLY = 23;
+    public static final byte DIVIDE = 24;
+    public static final byte NOT = 25;
+    public static final byte NEGATE = 26;
+    public static final byte PRINT = 27;
+    public static final byte JUMP = 28;                 // u16 forward offset
+    public static final byte JUMP_IF_FALSE = 29;        // u16 forward offset, leaves the condition on the stack
+    public static final byte LOOP = 30;                 // u16 backward offset
+    public static final byte CALL = 31;                 // u8 argument count
+    public static final byte CLOSURE = 32;              // u16 function constant, then (u8 isLocal, u8 index) per upvalue
+    public static final byte CLOSE_UPVALUE = 33;
+    public static final byte RETURN = 34;
+    public static final byte CLASS = 35;                // u16 name constant
+    public static final byte INHERIT = 36;
+    public static final byte METHOD = 37;               // u16 name constant
+    public static final byte CLASS_METHOD = 38;         // u16 name constant
+    public static final byte TAIL_CALL = 39;            // u8 argument count, a call whose result is returned
+    public static final byte CHECK_ASSIGNED = 40;       // u16 name constant, for the value of a local just read
+}
@@ -0,0 +1,15 @@
+package org.korren.jlox.vm;
+
+// A variable captured by a closure. While the variable is still on the VM stack the upvalue is "open" and only
+// points at its stack slot, once the variable goes out of scope its value moves into the upvalue itself.
+final class Upvalue {
+    final int slot;
+    Object value;
+    boolean closed = false;
+    // Next open upvalue, the VM keeps them sorted by descending slot
+    Upvalue next;
+
+    Upvalue(int slot) {
+        this.slot = slot;
+    }
+}
@@ -0,0 +1,536 @@
+package org.korren.jlox.vm;
+
+import org.korren.jlox.Lox;
+import org.korren.jlox.Output;
+import org.korren.jlox.RuntimeError;
+import org.korren.jlox.Token;
+import org.korren.jlox.TokenType;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public final class VM {
+    // Frames live on the heap, so recursion is only limited by this, and tail calls do not take frames at all
+    private static final int FRAMES_MAX = 4_000_000;
+    private static final Object UNASSIGNED = new Object();
+
+    private static final class CallFrame {
+        Closure closure;
+        int ip;
+        // Stack slot of the callee, which is also local slot 0 of the function
+        int base;
+    }
+
+    private Object[] stack = new Object[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    private Upvalue openUpvalues = null;
+    private final Map<String, Object> globals = new HashMap<>();
+    private Output out = new Output(System.out, false);
+
+    public VM() {
+        globals.put("clock", new NativeFunction(0, (arguments) -> (double)System.currentTimeMillis() / 1000.0));
+    }
+
+    public void interpret(FunctionProto script, Output out) {
+        Output currentOut = this.out;
+        this.out = out;
+        try {
+            Closure closure = new Closure(script);
+            push(closure);
+            call(closure, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            // What the program printed comes before the error
+            out.flush();
+            Lox.runtimeError(error);
+        } finally {
+            out.flush();
+            this.out = currentOut;
+            resetStack();
+        }
+    }
+
+    private void resetStack() {
+        Arrays.fill(stack, 0, sp, null);
+        sp = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        Chunk chunk = frame.closure.function.chunk;
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+
+        for (;;) {
+            int start = ip;
+            byte instruction = code[ip++];
+            switch (instruction) {
+                case OpCode.CONSTANT: {
+                    push(constants[readShort(code, ip)]);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.NIL: push(null); break;
+                case OpCode.TRUE: push(true); break;
+                case OpCode.FALSE: push(false); break;
+                case OpCode.UNASSIGNED: push(UNASSIGNED); break;
+                case OpCode.POP: stack[--sp] = null; break;
+                case OpCode.GET_LOCAL: {
+                    push(stack[base + (code[ip++] & 0xff)]);
+                    break;
+                }
+                case OpCode.SET_LOCAL: {
+                    stack[base + (code[ip++] & 0xff)] = stack[sp - 1];
+                    break;
+                }
+                case OpCode.GET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    Object value = globals.get(name);
+                    if (value == null && !globals.containsKey(name)) {
+                        throw error(chunk, start, "Undefined variable '" + name + "'.");
+                    }
+                    if (value == UNASSIGNED) {
+                        throw error(chunk, start, "Cannot read unassigned variable '" + name + "'.");
+                    }
+                    push(value);
+                    break;
+                }
+                case OpCode.DEFINE_GLOBAL: {
+                    globals.put((String)constants[readShort(code, ip)], pop());
+                    ip += 2;
+                    break;
+                }
+                case OpCode.SET_GLOBAL: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!globals.containsKey(name)) {
+                        throw error(chunk, start, "Undefined variable '" + name + "'.");
+                    }
+                    globals.put(name, stack[sp - 1]);
+                    break;
+                }
+                case OpCode.CHECK_ASSIGNED: {
+                    if (stack[sp - 1] == UNASSIGNED) {
+                        String name = (String)constants[readShort(code, ip)];
+                        throw error(chunk, start, "Cannot read unassigned variable '" + name + "'.");
+                    }
+                    ip += 2;
+                    break;
+                }
+                case OpCode.GET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    push(upvalue.closed ? upvalue.value : stack[upvalue.slot]);
+                    break;
+                }
+                case OpCode.SET_UPVALUE: {
+                    Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+                    if (upvalue.closed) {
+                        upvalue.value = stack[sp - 1];
+                    } else {
+                        stack[upvalue.slot] = stack[sp - 1];
+                    }
+                    break;
+                }
+                case OpCode.GET_PROPERTY: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 1] instanceof VmInstance instance)) {
+                        throw error(chunk, start, "Only instance have properties.");
+                    }
+                    Object value = instance.fields.get(name);
+                    if (value != null || instance.fields.containsKey(name)) {
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    stack[sp - 1] = bindMethod(instance.klass, instance, name, chunk, start);
+                    break;
+                }
+                case OpCode.SET_PROPERTY: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (!(stack[sp - 2] instanceof VmInstance instance)) {
+                        throw error(chunk, start, "Only instances have fields.");
+                    }
+                    Object value = pop();
+                    instance.fields.put(name, value);
+                    stack[sp - 1] = value;
+                    break;
+                }
+                case OpCode.GET_SUPER: {
+                    String name = (String)constants[readShort(code, ip)];
+                    ip += 2;
+                    VmClass superclass = (VmClass)pop();
+                    stack[sp - 1] = bindMethod(superclass, stack[sp - 1], name, chunk, start);
+                    break;
+                }
+                case OpCode.EQUAL: {
+                    Object b = pop();
+                    Object a = stack[sp - 1];
+                    stack[sp - 1] = isEqual(a, b);
+                    break;
+                }
+                case OpCode.GREATER: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] > b;
+                    break;
+                }
+                case OpCode.GREATER_EQUAL: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] >= b;
+                    break;
+                }
+                case OpCode.LESS: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] < b;
+                    break;
+                }
+                case OpCode.LESS_EQUAL: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] <= b;
+                    break;
+                }
+                case OpCode.ADD: {
+                    Object b = pop();
+                    Object a = stack[sp - 1];
+                    if (a instanceof Double && b instanceof Double) {
+                        stack[sp - 1] = (double)a + (double)b;
+                    } else if (a instanceof String && (b instanceof String || b instanceof Double)) {
+                        stack[sp - 1] = a + stringify(b);
+                    } else {
+                        throw error(chunk, start, "Operands must be two numbers or left operand must be a string");
+                    }
+                    break;
+                }
+                case OpCode.SUBTRACT: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] - b;
+                    break;
+                }
+                case OpCode.MULTIPLY: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    stack[sp - 1] = (double)stack[sp - 1] * b;
+                    break;
+                }
+                case OpCode.DIVIDE: {
+                    checkNumberOperands(chunk, start);
+                    double b = (double)pop();
+                    if (b == 0) {
+                        throw error(chunk, start, "Division by zero");
+                    }
+                    stack[sp - 1] = (double)stack[sp - 1] / b;
+                    break;
+                }
+                case OpCode.NOT: {
+                    stack[sp - 1] = !isTruthy(stack[sp - 1]);
+                    break;
+                }
+                case OpCode.NEGATE: {
+                    if (!(stack[sp - 1] instanceof Double)) {
+                        throw error(chunk, start, "Operand must be a number.");
+                    }
+                    stack[sp - 1] = -(double)stack[sp - 1];
+                    break;
+                }
+                case OpCode.PRINT: {
+                    Object value = pop();
+                    if (value instanceof Double) {
+                        out.printLine((double)value);
+                    } else {
+                        out.printLine(stringify(value));
+                    }
+                    break;
+                }
+                case OpCode.JUMP: {
+                    ip += 2 + readShort(code, ip);
+                    break;
+                }
+                case OpCode.JUMP_IF_FALSE: {
+                    if (isTruthy(stack[sp - 1])) {
+                        ip += 2;
+                    } else {
+                        ip += 2 + readShort(code, ip);
+                    }
+                    break;
+                }
+                case OpCode.LOOP: {
+                    ip = ip + 2 - readShort(code, ip);
+                    break;
+                }
+                case OpCode.CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    callValue(stack[sp - argCount - 1], argCount, chunk.lines[start]);
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.TAIL_CALL: {
+                    int argCount = code[ip++] & 0xff;
+                    frame.ip = ip;
+                    if (!tailCall(stack[sp - argCount - 1], argCount, base, chunk.lines[start])) {
+                        callValue(stack[sp - argCount - 1], argCount, chunk.lines[start]);
+                    }
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLOSURE: {
+                    FunctionProto function = (FunctionProto)constants[readShort(code, ip)];
+                    ip += 2;
+                    if (function.hoisted) {
+                        if (function.shared == null) function.shared = new Closure(function);
+                        push(function.shared);
+                        break;
+                    }
+                    Closure closure = new Closure(function);
+                    for (int i = 0; i < closure.upvalues.length; i++) {
+                        boolean isLocal = code[ip++] != 0;
+                        int index = code[ip++] & 0xff;
+                        closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+                    }
+                    push(closure);
+                    break;
+                }
+                case OpCode.CLOSE_UPVALUE: {
+                    closeUpvalues(sp - 1);
+                    stack[--sp] = null;
+                    break;
+                }
+                case OpCode.RETURN: {
+                    Object result = pop();
+                    closeUpvalues(base);
+                    frameCount--;
+                    Arrays.fill(stack, base, sp, null);
+                    sp = base;
+                    if (frameCount == 0) return;
+
+                    push(result);
+                    frame = frames[frameCount - 1];
+                    chunk = frame.closure.function.chunk;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    ip = frame.ip;
+                    base = frame.base;
+                    break;
+                }
+                case OpCode.CLASS: {
+                    push(new VmClass((String)constants[readShort(code, ip)]));
+                    ip += 2;
+                    break;
+                }
+                case OpCode.INHERIT: {
+                    if (!(stack[sp - 2] instanceof VmClass superclass)) {
+                        throw error(chunk, start, "Superclass must be a class.");
+                    }
+                    VmClass subclass = (VmClass)pop();
+                    subclass.superclass = superclass;
+                    subclass.methods.putAll(superclass.methods);
+                    break;
+                }
+                case OpCode.METHOD: {
+                    Closure method = (Closure)pop();
+                    ((VmClass)stack[sp - 1]).methods.put((String)constants[readShort(code, ip)], method);
+                    ip += 2;
+                    break;
+                }
+                case OpCode.CLASS_METHOD: {
+                    Closure method = (Closure)pop();
+                    ((VmClass)stack[sp - 1]).klass.methods.put((String)constants[readShort(code, ip)], method);
+                    ip += 2;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown op code " + instruction);
+            }
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = value;
+    }
+
+    private Object pop() {
+        Object value = stack[--sp];
+        stack[sp] = null;
+        return value;
+    }
+
+    private void callValue(Object callee, int argCount, int line) {
+        if (callee instanceof Closure closure) {
+            call(closure, argCount, line);
+        } else if (callee instanceof BoundMethod bound) {
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, line);
+        } else if (callee instanceof VmClass klass) {
+            stack[sp - argCount - 1] = new VmInstance(klass);
+            Closure initializer = klass.findMethod("init");
+            if (initializer != null) {
+                call(initializer, argCount, line);
+            } else if (argCount != 0) {
+                throw error(line, "Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof NativeFunction function) {
+            checkArity(function.arity, argCount, line);
+            Object result = function.body.call(Arrays.copyOfRange(stack, sp - argCount, sp));
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            push(result);
+        } else {
+            throw error(line, "Can only call functions and classes.");
+        }
+    }
+
+    // Replaces the current frame with a call to the callee if it is a Lox function, the callee and the arguments move
+    // down to the base of the frame. Returns false if the callee needs a regular call.
+    private boolean tailCall(Object callee, int argCount, int base, int line) {
+        Closure closure;
+        Object receiver;
+        if (callee instanceof Closure function) {
+            closure = function;
+            receiver = function;
+        } else if (callee instanceof BoundMethod bound) {
+            closure = bound.method;
+            receiver = bound.receiver;
+        } else {
+            return false;
+        }
+
+        checkArity(closure.function.arity, argCount, line);
+        closeUpvalues(base);
+        stack[base] = receiver;
+        System.arraycopy(stack, sp - argCount, stack, base + 1, argCount);
+        Arrays.fill(stack, base + argCount + 1, sp, null);
+        sp = base + argCount + 1;
+
+        CallFrame frame = frames[frameCount - 1];
+        frame.closure = closure;
+        frame.ip = 0;
+        return true;
+    }
+
+    private void call(Closure closure, int argCount, int line) {
+        checkArity(closure.function.arity, argCount, line);
+        if (frameCount == FRAMES_MAX) {
+            throw error(line, "Stack overflow.");
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = frames[frameCount] = new CallFrame();
+        }
+        frameCount++;
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+    }
+
+    private void checkArity(int arity, int argCount, int line) {
+        if (argCount != arity) {
+            throw error(line, "Expected " + arity + " arguments but got " + argCount + ".");
+        }
+    }
+
+    private BoundMethod bindMethod(VmClass klass, Object receiver, String name, Chunk chunk, int offset) {
+        Closure method = klass.findMethod(name);
+        if (method == null) {
+            throw error(chunk, offset, "Undefined property '" + name + "'.");
+        }
+        return new BoundMethod(receiver, method);
+    }
+
+    private Upvalue captureUpvalue(int slot) {
+        Upvalue previous = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        Upvalue created = new Upvalue(slot);
+        created.next = upvalue;
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    // Close all the upvalues pointing at the given stack slot or above it
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.value = stack[upvalue.slot];
+            upvalue.closed = true;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands(Chunk chunk, int offset) {
+        if (stack[sp - 2] instanceof Double && stack[sp - 1] instanceof Double) return;
+
+        throw error(chunk, offset, "Operands must be numbers.");
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean)object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        if (object instanceof Double) return Output.format((double)object);
+
+        return object.toString();
+    }
+
+    private static RuntimeError error(Chunk chunk, int offset, String message) {
+        return error(chunk.lines[offset], message);
+    }
+
+    private static RuntimeError error(int line, String message) {
+        return new RuntimeError(new Token(TokenType.EOF, "", null, line), message);
+    }
+}
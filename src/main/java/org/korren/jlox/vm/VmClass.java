@@ -0,0 +1,38 @@
+package org.korren.jlox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Classes are instances of their meta class, which holds the class methods
+final class VmClass extends VmInstance {
+    final String name;
+    VmClass superclass = null;
+    // Inherited methods are copied down into this table by INHERIT, so lookups never walk the superclass chain
+    final Map<String, Closure> methods = new HashMap<>();
+
+    static private final VmClass metaClassClass = new VmClass();
+
+    private VmClass(VmClass klass, String name) {
+        super(klass);
+        this.name = name;
+    }
+
+    // For MetaClassClass
+    private VmClass() {
+        this(null, "MetaClassClass");
+    }
+
+    // For normal classes
+    VmClass(String name) {
+        this(new VmClass(metaClassClass, name + "MetaClass"), name);
+    }
+
+    Closure findMethod(String name) {
+        return methods.get(name);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
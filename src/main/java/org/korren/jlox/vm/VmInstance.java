@@ -0,0 +1,23 @@
+package org.korren.jlox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class VmInstance {
+    final VmClass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    VmInstance(VmClass klass) {
+        if (klass == null && this instanceof VmClass) {
+            // Special case for the MetaClassClass
+            this.klass = (VmClass) this;
+            return;
+        }
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
@@ -14,34 +14,37 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
+                "Assign   : Token name, Expr value ; Interpreter.Local local, Environment.Global global",
                 "Binary   : Expr left, Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Call     : Expr callee, Token paren, List<Expr> arguments ; LoxCallable target",
+                "Get      : Expr object, Token name ; PropertyCache cache = new PropertyCache()",
                 "Grouping : Expr expression",
-                "Lambda   : List<Token> params, List<Stmt> body",
+                "Inline   : Expr.Call call, List<Token> params, Expr body",
+                "Lambda   : List<Token> params, List<Stmt> body ;" +
+                            " boolean[] capturedParams, boolean captures, LoxFunction hoisted, JitProfile profile",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
                 "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
+                "Super    : Token keyword, Token method ; Interpreter.Local local, SuperCache cache = new SuperCache()",
                 "Ternary  : Expr condition, Expr trueBranch, Expr falseBranch",
-                "This     : Token keyword",
+                "This     : Token keyword ; Interpreter.Local local",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name ; Interpreter.Local local, Environment.Global global, boolean constant"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
                 "Block      : List<Stmt> statements",
                 "Break      : Token keyword",
                 "Class      : Token name, Expr.Variable superclass," +
-                            " List<Stmt.Function> methods, List<Stmt.Function> classMethods",
+                            " List<Stmt.Function> methods, List<Stmt.Function> classMethods ; boolean captured",
                 "Continue   : Token keyword",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "Function   : Token name, List<Token> params, List<Stmt> body ;" +
+                            " boolean captured, boolean[] capturedParams, JitProfile profile",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
-                "While      : Expr condition, Stmt body"
+                "Var        : Token name, Expr initializer ; boolean captured",
+                "While      : Expr condition, Stmt body ; CountedLoop counted"
         ));
     }
 
@@ -60,8 +63,9 @@ public class GenerateAst {
         // The AST classes.
         for (String type: types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split(";");
+            String extraFields = fields.length > 1 ? fields[1].trim() : "";
+            defineType(writer, baseName, className, fields[0].trim(), extraFields);
         }
 
         // The base accept() method.
@@ -83,7 +87,12 @@ public class GenerateAst {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
+    // The extra fields come after a ";" in the type description. They are not constructor parameters, but data the
+    // interpreter attaches to the node: inline caches, each with its initializer, and the fields without initializer
+    // that the Resolver sets, like where a variable lives.
+    private static void defineType(
+            PrintWriter writer, String baseName, String className, String fieldList, String extraFieldList
+    ) {
         writer.println("  static class " + className + " extends " + baseName + " {");
 
         // Constructor.
@@ -110,6 +119,11 @@ public class GenerateAst {
         for (String field: fields) {
             writer.println("    final " + field + ";");
         }
+        if (!extraFieldList.isEmpty()) {
+            for (String field: extraFieldList.split(", ")) {
+                writer.println("    " + (field.contains("=") ? "final " : "") + field + ";");
+            }
+        }
 
         writer.println("  }");
     }
@@ -3,6 +3,7 @@ package org.korren.test.jlox;
 import static org.junit.jupiter.api.DynamicContainer.dynamicContainer;
 import org.junit.jupiter.api.DynamicNode;
 import org.junit.jupiter.api.TestFactory;
+import org.korren.jlox.Lox;
 
 import java.io.IOException;
 import java.net.URI;
@@ -12,14 +13,48 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.EnumSet;
 import java.util.Objects;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.DynamicTest.dynamicTest;
 
 public class JLoxTests {
+    // Every function is compiled on its first call, so the samples run through all the paths of the JIT
+    private static final int JIT_THRESHOLD = 1;
+
     @TestFactory
     DynamicNode fetchSampleFiles() throws URISyntaxException {
+        return sampleTests(Lox.Backend.INTERPRETER);
+    }
+
+    @TestFactory
+    DynamicNode fetchSampleFilesWithJit() throws URISyntaxException {
+        return sampleTests(Lox.Backend.JIT);
+    }
+
+    @TestFactory
+    DynamicNode fetchSampleFilesWithClosures() throws URISyntaxException {
+        return sampleTests(Lox.Backend.CLOSURES);
+    }
+
+    @TestFactory
+    DynamicNode fetchSampleFilesOnVm() throws URISyntaxException {
+        return sampleTests(Lox.Backend.VM);
+    }
+
+    @TestFactory
+    DynamicNode fetchSampleFilesOptimized() throws URISyntaxException {
+        return sampleTests(Lox.Backend.INTERPRETER, EnumSet.allOf(Lox.Optimization.class));
+    }
+
+    private DynamicNode sampleTests(Lox.Backend backend) throws URISyntaxException {
+        return sampleTests(backend, EnumSet.noneOf(Lox.Optimization.class));
+    }
+
+    private DynamicNode sampleTests(Lox.Backend backend, Set<Lox.Optimization> optimizations)
+            throws URISyntaxException {
         var uri = Objects.requireNonNull(getClass().getResource("samples")).toURI();
         FileSystem fs;
         try {
@@ -29,15 +64,15 @@ public class JLoxTests {
             fs = FileSystems.getFileSystem(rootUri);
         }
         var pth = fs.getPath(uri.getPath());
-        return pathToTest(pth);
+        return pathToTest(pth, backend, optimizations);
     }
 
-    private DynamicNode pathToTest(Path pth) {
+    private DynamicNode pathToTest(Path pth, Lox.Backend backend, Set<Lox.Optimization> optimizations) {
         if (Files.isDirectory(pth)) {
             try (var files = Files.list(pth)) {
                 var subTests = files
                         .filter((p) -> Files.isDirectory(p) || p.toString().endsWith("lox"))
-                        .map(this::pathToTest).toArray(DynamicNode[]::new);
+                        .map((p) -> pathToTest(p, backend, optimizations)).toArray(DynamicNode[]::new);
                 return dynamicContainer(pth.getFileName().toString(), pth.toUri(), Arrays.stream(subTests));
             } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -47,7 +82,7 @@ public class JLoxTests {
                 var code = Files.readString(pth);
 
                 var exp = ScriptOutput.readExpected(code);
-                var out = ScriptOutput.capture(code);
+                var out = ScriptOutput.capture(code, backend, optimizations, JIT_THRESHOLD);
 
                 assertEquals(exp, out);
             });
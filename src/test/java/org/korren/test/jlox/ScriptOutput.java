@@ -5,6 +5,8 @@ import org.korren.jlox.Lox;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -42,6 +44,17 @@ public record ScriptOutput(String stdOut, String stdErr) {
     }
 
     static ScriptOutput capture(String script) throws IOException {
+        return capture(script, Lox.Backend.INTERPRETER);
+    }
+
+    static ScriptOutput capture(String script, Lox.Backend backend) throws IOException {
+        return capture(script, backend, EnumSet.noneOf(Lox.Optimization.class));
+    }
+
+    static ScriptOutput capture(String script, Lox.Backend backend, Set<Lox.Optimization> optimizations)
+            throws IOException {
+        Lox.setBackend(backend);
+        Lox.setOptimizations(optimizations);
         try (
             var outBa = new ByteArrayOutputStream();
             var out = new PrintStream(outBa);
@@ -54,4 +67,11 @@ public record ScriptOutput(String stdOut, String stdErr) {
             Lox.reset();
         }
     }
+
+    static ScriptOutput capture(
+            String script, Lox.Backend backend, Set<Lox.Optimization> optimizations, int jitThreshold
+    ) throws IOException {
+        Lox.setJitThreshold(jitThreshold);
+        return capture(script, backend, optimizations);
+    }
 }